@@ -0,0 +1,89 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import participants.Message;
+import participants.MessageCodec;
+import participants.Person;
+import utils.BranchUpdate;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the branch update one member sends per rekey,
+ * with 2048-bit blinded keys and a branch as long as the tree is high.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"3", "10", "17"})
+    public int height;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        /* size of one frame, not a total */
+        public long bytesOnWire;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesOnWire = 0;
+        }
+    }
+
+    private Person sender;
+    private Message message;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sender = new Person();
+
+        Random random = new Random(42);
+        BranchUpdate branch = new BranchUpdate(height);
+
+        for (int level = height; level > 0; --level) {
+            branch.add(level, random.nextInt(1 << level), new BigInteger(2048, random).mod(Groups.MODP_2048));
+        }
+
+        message = Message.branchUpdate(sender, branch);
+        buffer = ByteBuffer.allocateDirect(MessageCodec.frameSize(message));
+    }
+
+    @Benchmark
+    public ByteBuffer encode(Bytes bytes) {
+        buffer.clear();
+        MessageCodec.encode(1, message, buffer);
+        bytes.bytesOnWire = buffer.position();
+
+        return buffer;
+    }
+
+    @Benchmark
+    public Message roundTrip(Bytes bytes) {
+        buffer.clear();
+        MessageCodec.encode(1, message, buffer);
+        bytes.bytesOnWire = buffer.position();
+        buffer.flip();
+
+        return MessageCodec.decode(buffer, id -> sender);
+    }
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+import crypto.FixedBaseEngine;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default engine that counts exponentiations of all members in the process.
+ */
+public class CountingEngine extends FixedBaseEngine {
+    private static final LongAdder exponentiations = new LongAdder();
+
+    public CountingEngine(BigInteger p, BigInteger g) {
+        super(p, g);
+    }
+
+    /**
+     * Exponentiations since the last call.
+     */
+    public static long take() {
+        return exponentiations.sumThenReset();
+    }
+
+    @Override
+    public BigInteger blind(BigInteger secret) {
+        exponentiations.increment();
+        return super.blind(secret);
+    }
+
+    @Override
+    public BigInteger agree(BigInteger secret, BigInteger blindedKey) {
+        exponentiations.increment();
+        return super.agree(secret, blindedKey);
+    }
+}
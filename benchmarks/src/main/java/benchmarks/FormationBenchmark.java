@@ -0,0 +1,83 @@
+package benchmarks;
+
+import crypto.GroupParameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import participants.HierarchyLevel;
+import participants.Person;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forming a group in one batch, with 2048-bit finite-field keys or on
+ * X25519: the trees are built in bulk and all keys agreed in a coordinated
+ * rekey, with the members computing on a pool of the given size, or on the
+ * caller's thread for 0.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class FormationBenchmark {
+    @Param({"64", "512"})
+    public int members;
+
+    @Param({"0", "4"})
+    public int threads;
+
+    @Param({"4"})
+    public int cutoff;
+
+    @Param({"modp2048", "x25519"})
+    public String group;
+
+    private GroupParameters parameters;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        parameters = "x25519".equals(group)
+                ? GroupParameters.X25519
+                : GroupParameters.modp(Groups.MODP_2048, Groups.GENERATOR);
+
+        pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Benchmark
+    public HierarchyLevel form() {
+        HierarchyLevel level = new HierarchyLevel(new Person(parameters));
+
+        if (pool != null)
+            level.computeOn(pool, cutoff);
+
+        level.enableBatchRekey(members, Long.MAX_VALUE);
+
+        for (int i = 1; i < members; ++i) {
+            new Person().joinGroup(level);
+        }
+
+        level.flush();
+
+        return level;
+    }
+}
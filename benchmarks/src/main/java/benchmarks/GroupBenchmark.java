@@ -0,0 +1,143 @@
+package benchmarks;
+
+import crypto.KeyAgreementEngines;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import participants.Disseminator;
+import participants.HierarchyLevel;
+import participants.Person;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole protocol runs with 2048-bit keys: one member leaves and a new one
+ * joins, with every member keeping its own tree. The exponentiations
+ * counter is the total for the iteration; divide by the operation count for
+ * exponentiations per leave and join.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupBenchmark {
+    @Param({"8", "64", "512"})
+    public int members;
+
+    @Param({"sequential", "random"})
+    public String churn;
+
+    /* synchronous: members are called in turn; concurrent: on a thread pool */
+    @Param({"synchronous", "concurrent"})
+    public String dissemination;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long exponentiations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            exponentiations = 0;
+            CountingEngine.take();
+        }
+    }
+
+    private HierarchyLevel group;
+
+    /* persons in join order for sequential churn, in any order for random churn */
+    private Deque<Person> oldestFirst;
+    private List<Person> persons;
+    private Disseminator disseminator;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        KeyAgreementEngines.setFactory(CountingEngine::new);
+
+        disseminator = "concurrent".equals(dissemination)
+                ? Disseminator.withThreads(Runtime.getRuntime().availableProcessors())
+                : Disseminator.SYNCHRONOUS;
+
+        Person founder = newPerson();
+
+        group = new HierarchyLevel(founder);
+        oldestFirst = new ArrayDeque<>();
+        persons = new ArrayList<>();
+        track(founder);
+
+        for (int i = 1; i < members; ++i) {
+            Person person = newPerson();
+            person.joinGroup(group);
+            track(person);
+        }
+
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        disseminator.awaitIdle();
+    }
+
+    @Benchmark
+    public Person leaveAndJoin(Counters counters) throws InterruptedException {
+        Person leaver;
+
+        if ("random".equals(churn)) {
+            int leaving = random.nextInt(persons.size());
+            leaver = persons.get(leaving);
+
+            /* keeps removal O(1), order does not matter for random churn */
+            persons.set(leaving, persons.get(persons.size() - 1));
+            persons.remove(persons.size() - 1);
+        } else {
+            leaver = oldestFirst.pollFirst();
+        }
+
+        leaver.leaveGroup(group);
+        disseminator.awaitIdle();
+
+        Person joiner = newPerson();
+        joiner.joinGroup(group);
+        disseminator.awaitIdle();
+
+        track(joiner);
+
+        counters.exponentiations += CountingEngine.take();
+
+        return joiner;
+    }
+
+    private void track(Person person) {
+        if ("random".equals(churn))
+            persons.add(person);
+        else
+            oldestFirst.addLast(person);
+    }
+
+    private Person newPerson() {
+        Person person = new Person(Groups.MODP_2048, Groups.GENERATOR);
+        person.setDisseminator(disseminator);
+
+        return person;
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import participants.Person;
+import utils.LinkedList;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Membership list operations on a list of group members.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkedListBenchmark {
+    @Param({"8", "1024", "100000"})
+    public int size;
+
+    private LinkedList<Person> list;
+    private Person[] persons;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        list = new LinkedList<>(true);
+        persons = new Person[size];
+
+        for (int i = 0; i < size; ++i) {
+            persons[i] = new Person();
+            list.add(persons[i]);
+        }
+
+        random = new Random(42);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return list.contains(persons[random.nextInt(size)]);
+    }
+
+    @Benchmark
+    public Person removeAndAdd() {
+        Person person = persons[random.nextInt(size)];
+
+        list.remove(person);
+        list.add(person);
+
+        return person;
+    }
+}
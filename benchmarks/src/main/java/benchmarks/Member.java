@@ -0,0 +1,19 @@
+package benchmarks;
+
+import participants.Client;
+import participants.HierarchyLevel;
+
+/**
+ * Bare tree leaf owner for benchmarks that exercise DHTree alone.
+ */
+public class Member implements Client {
+    @Override
+    public void joinGroup(HierarchyLevel group) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void leaveGroup(HierarchyLevel group) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,138 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import participants.HierarchyLevel;
+import participants.Person;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Churn spread over several groups that each have a sequencer on one shared
+ * pool: every invocation queues the same number of leaves and joins in each
+ * group and waits for all of them. With more groups than one, throughput
+ * should grow with the pool size, while one group has a single writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SequencerBenchmark {
+    private static final int CHANGES = 128;
+
+    @Param({"1", "4", "16", "64"})
+    public int groups;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"16"})
+    public int members;
+
+    private ExecutorService pool;
+    private HierarchyLevel[] levels;
+    private List<List<Person>> persons;
+    private List<Deque<Person>> spares;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "sequencer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        levels = new HierarchyLevel[groups];
+        persons = new ArrayList<>();
+        spares = new ArrayList<>();
+
+        for (int i = 0; i < groups; ++i) {
+            Person founder = newPerson();
+            List<Person> group = new ArrayList<>();
+
+            levels[i] = new HierarchyLevel(founder);
+            group.add(founder);
+
+            for (int j = 1; j < members; ++j) {
+                Person person = newPerson();
+                person.joinGroup(levels[i]);
+                group.add(person);
+            }
+
+            levels[i].sequenceOn(pool, 16);
+            persons.add(group);
+
+            /* leavers join again later, so that no keys are made on this thread */
+            Deque<Person> spare = new ArrayDeque<>();
+
+            for (int j = 0; j < CHANGES / 2; ++j) {
+                spare.add(newPerson());
+            }
+
+            spares.add(spare);
+        }
+
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Leaves and joins are spread evenly over the groups, CHANGES in all.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CHANGES)
+    public void churn() {
+        CompletableFuture<?>[] done = new CompletableFuture<?>[groups];
+
+        for (int i = 0; i < groups; ++i) {
+            HierarchyLevel level = levels[i];
+            List<Person> group = persons.get(i);
+            Deque<Person> spare = spares.get(i);
+
+            for (int j = 0; j < CHANGES / groups / 2; ++j) {
+                Person leaver = group.remove(1 + random.nextInt(group.size() - 1));
+                Person joiner = spare.poll();
+
+                group.add(joiner);
+                spare.add(leaver);
+
+                level.submit(() -> leaver.leaveGroup(level));
+                done[i] = level.submit(() -> joiner.joinGroup(level));
+            }
+        }
+
+        /* a group's changes run in order, so its last one finishes after the rest */
+        CompletableFuture.allOf(done).join();
+    }
+
+    private Person newPerson() {
+        return new Person(Groups.MODP_2048, Groups.GENERATOR);
+    }
+}
@@ -0,0 +1,124 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import participants.Client;
+import utils.BlindedTree;
+import utils.DHTree;
+import utils.LinkedList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structure cost of DHTree without key computation: a leave followed by a
+ * join at constant group size, building a tree from a member list, and a
+ * newcomer taking over another member's blinded tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark {
+    @Param({"8", "64", "1024", "16384", "100000"})
+    public int clients;
+
+    /* sequential: the oldest member leaves; random: any member leaves */
+    @Param({"sequential", "random"})
+    public String churn;
+
+    private DHTree tree;
+
+    /* members in join order for sequential churn, in any order for random churn */
+    private Deque<Member> oldestFirst;
+    private List<Member> members;
+    private LinkedList<Client> memberList;
+    private BlindedTree blinded;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Member owner = new Member();
+
+        tree = new DHTree(owner);
+        oldestFirst = new ArrayDeque<>();
+        members = new ArrayList<>();
+        memberList = new LinkedList<>(true);
+        memberList.add(owner);
+
+        for (int i = 1; i < clients; ++i) {
+            Member member = new Member();
+
+            tree.addClient(member);
+            memberList.add(member);
+
+            if ("random".equals(churn))
+                members.add(member);
+            else
+                oldestFirst.addLast(member);
+        }
+
+        blinded = tree.getBlindedTree();
+        random = new Random(42);
+    }
+
+    @Benchmark
+    public Client leaveAndJoin() {
+        boolean sequential = !"random".equals(churn);
+        Member leaver;
+
+        if (sequential) {
+            leaver = oldestFirst.pollFirst();
+        } else {
+            int leaving = random.nextInt(members.size());
+            leaver = members.get(leaving);
+
+            /* keeps removal O(1), order does not matter for random churn */
+            members.set(leaving, members.get(members.size() - 1));
+            members.remove(members.size() - 1);
+        }
+
+        tree.removeClient(leaver);
+
+        Member joiner = new Member();
+
+        if (sequential)
+            oldestFirst.addLast(joiner);
+        else
+            members.add(joiner);
+
+        return tree.addClient(joiner);
+    }
+
+    @Benchmark
+    public DHTree buildTree() {
+        DHTree fresh = new DHTree(memberList.getFirst());
+        fresh.buildTree(memberList);
+
+        return fresh;
+    }
+
+    @Benchmark
+    public DHTree joinTree() {
+        DHTree fresh = new DHTree(new Member());
+        fresh.joinTree(blinded);
+
+        return fresh;
+    }
+}
@@ -0,0 +1,77 @@
+package crypto;
+
+import utils.Pair;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide fixed-base tables keyed by group parameters (p, g). Every
+ * engine working with a given (p, g) registers itself here; the table is
+ * built on the first blinding and dropped when the last engine is released.
+ */
+public final class FixedBaseCache {
+    private static class Entry {
+        private int users;
+        private volatile FixedBaseTable table;
+    }
+
+    private static final Map<Pair<BigInteger, BigInteger>, Entry> entries = new HashMap<>();
+
+    private FixedBaseCache() {
+    }
+
+    public static synchronized void acquire(BigInteger p, BigInteger g) {
+        Pair<BigInteger, BigInteger> key = new Pair<>(p, g);
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+
+        ++entry.users;
+    }
+
+    public static synchronized void release(BigInteger p, BigInteger g) {
+        Pair<BigInteger, BigInteger> key = new Pair<>(p, g);
+        Entry entry = entries.get(key);
+
+        if (entry == null)
+            throw new IllegalStateException("Parameters (" + p + ", " + g + ") were not acquired");
+
+        if (--entry.users == 0)
+            entries.remove(key);
+    }
+
+    public static synchronized int size() {
+        return entries.size();
+    }
+
+    static FixedBaseTable table(BigInteger p, BigInteger g) {
+        Entry entry;
+
+        synchronized (FixedBaseCache.class) {
+            entry = entries.get(new Pair<>(p, g));
+        }
+
+        if (entry == null)
+            throw new IllegalStateException("Parameters (" + p + ", " + g + ") were not acquired");
+
+        FixedBaseTable table = entry.table;
+
+        if (table == null) {
+            synchronized (entry) {
+                table = entry.table;
+
+                if (table == null) {
+                    table = new FixedBaseTable(p, g);
+                    entry.table = table;
+                }
+            }
+        }
+
+        return table;
+    }
+}
@@ -0,0 +1,60 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Modular exponentiation engine that blinds secrets through the shared
+ * fixed-base table of its group. Variable-base exponentiations are left to
+ * {@link ModPowEngine}.
+ * <p>
+ * The engine holds a reference on the cache entry of (p, g) until it is
+ * released. A member releases its engine when it leaves or takes other
+ * parameters; a member that is dropped without leaving keeps the entry,
+ * and with it the table, in the cache.
+ */
+public class FixedBaseEngine extends ModPowEngine {
+    /* read without the lock by blind, set and cleared under it */
+    private volatile FixedBaseTable table;
+    private boolean released;
+
+    public FixedBaseEngine(BigInteger p, BigInteger g) {
+        super(p, g);
+
+        FixedBaseCache.acquire(p, g);
+        released = false;
+    }
+
+    @Override
+    public BigInteger blind(BigInteger secret) {
+        FixedBaseTable current = table;
+
+        if (current == null)
+            current = lookupTable();
+
+        if (!current.covers(secret))
+            return super.blind(secret);
+
+        return current.power(secret);
+    }
+
+    @Override
+    public synchronized void release() {
+        if (released)
+            return;
+
+        released = true;
+        table = null;
+
+        FixedBaseCache.release(getModulus(), getGenerator());
+    }
+
+    private synchronized FixedBaseTable lookupTable() {
+        if (released)
+            throw new IllegalStateException("Engine has been released");
+
+        if (table == null)
+            table = FixedBaseCache.table(getModulus(), getGenerator());
+
+        return table;
+    }
+}
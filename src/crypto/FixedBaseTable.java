@@ -0,0 +1,83 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Precomputed powers of a fixed base: row i holds g^(d * 2^(w*i)) for every
+ * window value d. An exponentiation is then one multiplication per window and
+ * no squarings. Products are reduced with Barrett reduction, which only needs
+ * multiplications and shifts.
+ */
+class FixedBaseTable {
+    private final BigInteger p;
+    private final BigInteger mu;
+    private final int k;
+
+    private final int window;
+    private final BigInteger[][] rows;
+
+    FixedBaseTable(BigInteger p, BigInteger g) {
+        this.p = p;
+
+        k = p.bitLength();
+        mu = BigInteger.ONE.shiftLeft(2 * k).divide(p);
+
+        window = chooseWindow(k);
+        rows = new BigInteger[(k + window - 1) / window][1 << window];
+
+        BigInteger base = g.mod(p);
+
+        for (BigInteger[] row : rows) {
+            row[0] = BigInteger.ONE;
+            row[1] = base;
+
+            for (int d = 2; d < row.length; ++d) {
+                row[d] = reduce(row[d - 1].multiply(base));
+            }
+
+            base = reduce(row[row.length - 1].multiply(base));
+        }
+    }
+
+    boolean covers(BigInteger exponent) {
+        return exponent.signum() >= 0 && exponent.bitLength() <= rows.length * window;
+    }
+
+    BigInteger power(BigInteger exponent) {
+        BigInteger result = BigInteger.ONE;
+        int bit = 0;
+
+        for (BigInteger[] row : rows) {
+            int digit = 0;
+
+            for (int j = 0; j < window; ++j, ++bit) {
+                if (exponent.testBit(bit))
+                    digit |= 1 << j;
+            }
+
+            if (digit != 0)
+                result = reduce(result.multiply(row[digit]));
+        }
+
+        return result;
+    }
+
+    private BigInteger reduce(BigInteger value) {
+        BigInteger quotient = value.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+        BigInteger remainder = value.subtract(quotient.multiply(p));
+
+        while (remainder.compareTo(p) >= 0) {
+            remainder = remainder.subtract(p);
+        }
+
+        return remainder;
+    }
+
+    private static int chooseWindow(int bits) {
+        if (bits < 256)
+            return 4;
+
+        /* keeps a 4096-bit table around 13 MB */
+        return bits <= 3072 ? 6 : 5;
+    }
+}
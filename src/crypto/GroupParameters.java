@@ -0,0 +1,105 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Group a tree agrees its keys in, which members take over when they join:
+ * a finite field given by a prime p and a generator g, or one of the curves
+ * the JDK does XDH on. The tree never looks into keys; what a key means is
+ * up to the engine of the group.
+ */
+public final class GroupParameters {
+    public enum Type {
+        MODP, X25519, X448
+    }
+
+    public static final GroupParameters X25519 = new GroupParameters(Type.X25519, null, null);
+    public static final GroupParameters X448 = new GroupParameters(Type.X448, null, null);
+
+    private final Type type;
+    private final BigInteger p, g;
+
+    private GroupParameters(Type type, BigInteger p, BigInteger g) {
+        this.type = type;
+        this.p = p;
+        this.g = g;
+    }
+
+    /**
+     * Finite-field group of the prime p with generator g.
+     */
+    public static GroupParameters modp(BigInteger p, BigInteger g) {
+        if (p == null || g == null)
+            throw new NullPointerException("Finite-field group needs p and g");
+
+        return new GroupParameters(Type.MODP, p, g);
+    }
+
+    /**
+     * Curve group of the type.
+     */
+    public static GroupParameters curve(Type type) {
+        switch (type) {
+            case X25519:
+                return X25519;
+            case X448:
+                return X448;
+            default:
+                throw new IllegalArgumentException("Not a curve: " + type);
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isCurve() {
+        return type != Type.MODP;
+    }
+
+    /**
+     * Prime of a finite-field group, null for curves.
+     */
+    public BigInteger getP() {
+        return p;
+    }
+
+    /**
+     * Generator of a finite-field group, null for curves.
+     */
+    public BigInteger getG() {
+        return g;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GroupParameters)) return false;
+
+        GroupParameters that = (GroupParameters) o;
+
+        if (type != that.type) return false;
+        if (p != null ? !p.equals(that.p) : that.p != null) return false;
+        return g != null ? g.equals(that.g) : that.g == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + (p != null ? p.hashCode() : 0);
+        result = 31 * result + (g != null ? g.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (isCurve())
+            return "crypto.GroupParameters{" + type + '}';
+
+        return "crypto.GroupParameters{" +
+                "type=" + type +
+                ", p=" + p +
+                ", g=" + g +
+                '}';
+    }
+}
@@ -0,0 +1,36 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Group arithmetic used by the key tree. Every blinded key and every node key
+ * of {@link utils.DHTree} goes through one of these two operations, so the
+ * engine decides how fast a rekey is. Keys are opaque to everybody else: the
+ * tree only keeps, compares and sends them.
+ */
+public interface KeyAgreementEngine {
+    GroupParameters getParameters();
+
+    /**
+     * Picks a fresh random secret for this group.
+     */
+    BigInteger generateSecret();
+
+    /**
+     * Blinded key of a secret: g^secret mod p, or the secret times the base
+     * point of a curve.
+     */
+    BigInteger blind(BigInteger secret);
+
+    /**
+     * Shared key of a secret and somebody else's blinded key: blindedKey^secret
+     * mod p, or the secret times the blinded point of a curve.
+     */
+    BigInteger agree(BigInteger secret, BigInteger blindedKey);
+
+    /**
+     * Called when a member stops using this engine, so that shared
+     * precomputation for the group can be dropped.
+     */
+    void release();
+}
@@ -0,0 +1,38 @@
+package crypto;
+
+import java.math.BigInteger;
+
+/**
+ * Chooses the engine backend used for new groups. Members get their engine
+ * from here whenever their group parameters change, so replacing the factory
+ * switches every member created or rekeyed afterwards. The factory makes the
+ * engines of finite-field groups; curve groups run on {@link XdhEngine}.
+ */
+public final class KeyAgreementEngines {
+    public interface Factory {
+        KeyAgreementEngine create(BigInteger p, BigInteger g);
+    }
+
+    private static volatile Factory factory = FixedBaseEngine::new;
+
+    private KeyAgreementEngines() {
+    }
+
+    public static KeyAgreementEngine create(BigInteger p, BigInteger g) {
+        return factory.create(p, g);
+    }
+
+    public static KeyAgreementEngine create(GroupParameters parameters) {
+        if (parameters.isCurve())
+            return new XdhEngine(parameters);
+
+        return factory.create(parameters.getP(), parameters.getG());
+    }
+
+    public static void setFactory(Factory factory) {
+        if (factory == null)
+            throw new NullPointerException("Engine factory is null");
+
+        KeyAgreementEngines.factory = factory;
+    }
+}
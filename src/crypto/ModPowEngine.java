@@ -0,0 +1,73 @@
+package crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Engine backed by {@link BigInteger#modPow}. For odd moduli the JDK already
+ * runs Montgomery multiplication with a sliding window (and intrinsics on most
+ * platforms), so this is the reference backend for finite-field groups.
+ */
+public class ModPowEngine implements KeyAgreementEngine {
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    private final BigInteger p;
+    private final BigInteger g;
+    private final GroupParameters parameters;
+
+    private final SecureRandom random;
+
+    public ModPowEngine(BigInteger p, BigInteger g) {
+        if (p.compareTo(BigInteger.valueOf(5)) < 0)
+            throw new IllegalArgumentException("Modulus is too small: " + p);
+
+        if (g.signum() <= 0 || g.compareTo(p) >= 0)
+            throw new IllegalArgumentException("Generator " + g + " is not in group of modulus " + p);
+
+        this.p = p;
+        this.g = g;
+        parameters = GroupParameters.modp(p, g);
+
+        random = new SecureRandom();
+    }
+
+    @Override
+    public GroupParameters getParameters() {
+        return parameters;
+    }
+
+    public BigInteger getModulus() {
+        return p;
+    }
+
+    public BigInteger getGenerator() {
+        return g;
+    }
+
+    @Override
+    public BigInteger generateSecret() {
+        /* uniform in [2, p - 2] */
+        BigInteger bound = p.subtract(BigInteger.valueOf(3));
+        BigInteger secret;
+
+        do {
+            secret = new BigInteger(bound.bitLength(), random);
+        } while (secret.compareTo(bound) >= 0);
+
+        return secret.add(TWO);
+    }
+
+    @Override
+    public BigInteger blind(BigInteger secret) {
+        return g.modPow(secret, p);
+    }
+
+    @Override
+    public BigInteger agree(BigInteger secret, BigInteger blindedKey) {
+        return blindedKey.modPow(secret, p);
+    }
+
+    @Override
+    public void release() {
+    }
+}
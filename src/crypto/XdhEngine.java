@@ -0,0 +1,141 @@
+package crypto;
+
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+
+/**
+ * Engine for the curves of RFC 7748 on the JDK's XDH provider. A key is the
+ * curve's byte string read as an unsigned number, so the tree keeps it like
+ * any other; an agreed key is the secret of the node above, as the curve
+ * takes any string of its length as a secret. One engine is for one member.
+ */
+public class XdhEngine implements KeyAgreementEngine {
+    private final GroupParameters parameters;
+    private final NamedParameterSpec curve;
+    private final int keyLength;
+
+    /* u-coordinate of the base point, as a blinded key */
+    private final BigInteger base;
+
+    private final KeyFactory keys;
+    private final KeyAgreement agreement;
+    private final SecureRandom random;
+
+    public XdhEngine(GroupParameters parameters) {
+        switch (parameters.getType()) {
+            case X25519:
+                curve = NamedParameterSpec.X25519;
+                keyLength = 32;
+                base = key(littleEndian(BigInteger.valueOf(9), 32));
+                break;
+            case X448:
+                curve = NamedParameterSpec.X448;
+                keyLength = 56;
+                base = key(littleEndian(BigInteger.valueOf(5), 56));
+                break;
+            default:
+                throw new IllegalArgumentException("Not a curve group: " + parameters);
+        }
+
+        this.parameters = parameters;
+
+        try {
+            keys = KeyFactory.getInstance("XDH");
+            agreement = KeyAgreement.getInstance("XDH");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JDK has no XDH provider", e);
+        }
+
+        random = new SecureRandom();
+    }
+
+    @Override
+    public GroupParameters getParameters() {
+        return parameters;
+    }
+
+    @Override
+    public BigInteger generateSecret() {
+        byte[] secret = new byte[keyLength];
+        random.nextBytes(secret);
+
+        return key(secret);
+    }
+
+    @Override
+    public BigInteger blind(BigInteger secret) {
+        return agree(secret, base);
+    }
+
+    @Override
+    public synchronized BigInteger agree(BigInteger secret, BigInteger blindedKey) {
+        byte[] point = string(blindedKey);
+
+        /* the top bit of an X25519 u-coordinate is ignored, RFC 7748 section 5 */
+        if (keyLength == 32)
+            point[keyLength - 1] &= 0x7F;
+
+        try {
+            PrivateKey own = keys.generatePrivate(new XECPrivateKeySpec(curve, string(secret)));
+            PublicKey other = keys.generatePublic(new XECPublicKeySpec(curve, fromLittleEndian(point)));
+
+            agreement.init(own);
+            agreement.doPhase(other, true);
+
+            return key(agreement.generateSecret());
+        } catch (InvalidKeySpecException | InvalidKeyException e) {
+            throw new IllegalArgumentException("Blinded key is not a point of " + curve.getName(), e);
+        }
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * Byte string of a key, of the curve's length. A longer secret, like the
+     * group key of a nested finite-field level, gives its low bytes.
+     */
+    private byte[] string(BigInteger key) {
+        byte[] magnitude = key.toByteArray();
+        byte[] string = new byte[keyLength];
+        int length = Math.min(magnitude.length, keyLength);
+
+        System.arraycopy(magnitude, magnitude.length - length, string, keyLength - length, length);
+        return string;
+    }
+
+    private static BigInteger key(byte[] string) {
+        return new BigInteger(1, string);
+    }
+
+    private static byte[] littleEndian(BigInteger value, int length) {
+        byte[] string = new byte[length];
+
+        for (int i = 0; i < length; ++i) {
+            string[i] = value.shiftRight(8 * i).byteValue();
+        }
+
+        return string;
+    }
+
+    private static BigInteger fromLittleEndian(byte[] string) {
+        byte[] reversed = new byte[string.length];
+
+        for (int i = 0; i < string.length; ++i) {
+            reversed[i] = string[string.length - 1 - i];
+        }
+
+        return new BigInteger(1, reversed);
+    }
+}
@@ -0,0 +1,16 @@
+package metrics;
+
+/**
+ * Last value reported, e.g. the current tree height.
+ */
+public final class Gauge {
+    private volatile long value;
+
+    public void set(long value) {
+        this.value = value;
+    }
+
+    public long get() {
+        return value;
+    }
+}
@@ -0,0 +1,132 @@
+package metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Instruments of one group. Members and their trees hold on to the bundle
+ * of the group they are in, so publishing is a field access and an atomic
+ * add, without any lookup.
+ */
+public final class GroupMetrics {
+    private final String group;
+
+    private final Counter joins = new Counter();
+    private final Counter leaves = new Counter();
+    private final Counter exponentiations = new Counter();
+    private final Counter messagesSent = new Counter();
+    private final Counter staleMessages = new Counter();
+
+    private final Gauge treeHeight = new Gauge();
+    private final Gauge members = new Gauge();
+
+    private final Histogram branchLength = new Histogram();
+    private final Histogram joinLatency = new Histogram();
+    private final Histogram leaveLatency = new Histogram();
+    private final Histogram removeLatency = new Histogram();
+
+    GroupMetrics(String group) {
+        this.group = group;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public Counter joins() {
+        return joins;
+    }
+
+    public Counter leaves() {
+        return leaves;
+    }
+
+    /**
+     * Modular exponentiations of all members, agreeing and blinding alike.
+     */
+    public Counter exponentiations() {
+        return exponentiations;
+    }
+
+    /**
+     * Protocol messages, one per recipient.
+     */
+    public Counter messagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * Messages dropped because the recipient or the sender was no longer a
+     * member when the message was handled.
+     */
+    public Counter staleMessages() {
+        return staleMessages;
+    }
+
+    public Gauge treeHeight() {
+        return treeHeight;
+    }
+
+    public Gauge members() {
+        return members;
+    }
+
+    /**
+     * Blinded keys per branch a member sends.
+     */
+    public Histogram branchLength() {
+        return branchLength;
+    }
+
+    /**
+     * Nanoseconds joinGroup takes the newcomer.
+     */
+    public Histogram joinLatency() {
+        return joinLatency;
+    }
+
+    /**
+     * Nanoseconds leaveGroup takes the leaver.
+     */
+    public Histogram leaveLatency() {
+        return leaveLatency;
+    }
+
+    /**
+     * Nanoseconds a member takes to handle a leave, rekey included.
+     */
+    public Histogram removeLatency() {
+        return removeLatency;
+    }
+
+    /**
+     * Current values by name; a histogram shows as its count, mean, median,
+     * 99th percentile and max.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+
+        values.put("joins", joins.get());
+        values.put("leaves", leaves.get());
+        values.put("exponentiations", exponentiations.get());
+        values.put("messagesSent", messagesSent.get());
+        values.put("staleMessages", staleMessages.get());
+        values.put("treeHeight", treeHeight.get());
+        values.put("members", members.get());
+
+        putHistogram(values, "branchLength", branchLength);
+        putHistogram(values, "joinLatencyNanos", joinLatency);
+        putHistogram(values, "leaveLatencyNanos", leaveLatency);
+        putHistogram(values, "removeLatencyNanos", removeLatency);
+
+        return values;
+    }
+
+    private static void putHistogram(Map<String, Number> values, String name, Histogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean", histogram.getMean());
+        values.put(name + ".p50", histogram.getPercentile(50));
+        values.put(name + ".p99", histogram.getPercentile(99));
+        values.put(name + ".max", histogram.getMax());
+    }
+}
@@ -0,0 +1,78 @@
+package metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.Map;
+
+/**
+ * Read-only view of a group's metrics for JMX, one attribute per value of
+ * {@link GroupMetrics#snapshot()}.
+ */
+final class GroupMetricsMBean implements DynamicMBean {
+    private final GroupMetrics metrics;
+    private final MBeanInfo info;
+
+    GroupMetricsMBean(GroupMetrics metrics) {
+        this.metrics = metrics;
+
+        Map<String, Number> values = metrics.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+
+        for (Map.Entry<String, Number> value : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false);
+        }
+
+        info = new MBeanInfo(GroupMetrics.class.getName(), "Metrics of group " + metrics.getGroup(),
+                attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = metrics.snapshot().get(attribute);
+
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = metrics.snapshot();
+        AttributeList list = new AttributeList();
+
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute))
+                list.add(new Attribute(attribute, values.get(attribute)));
+        }
+
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("Metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
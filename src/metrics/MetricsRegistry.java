@@ -0,0 +1,131 @@
+package metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metrics of all groups, tagged by group name.
+ */
+public final class MetricsRegistry {
+    public static final String DOMAIN = "diffie-hellman";
+
+    /* members that are in no group publish here */
+    public static final String UNGROUPED = "ungrouped";
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentMap<String, GroupMetrics> groups;
+
+    /* null until the registry is exposed through JMX */
+    private volatile MBeanServer server;
+
+    public MetricsRegistry() {
+        groups = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registry the protocol classes publish to.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public GroupMetrics group(String name) {
+        GroupMetrics metrics = groups.get(name);
+
+        if (metrics != null)
+            return metrics;
+
+        GroupMetrics created = new GroupMetrics(name);
+        metrics = groups.putIfAbsent(name, created);
+
+        if (metrics != null)
+            return metrics;
+
+        MBeanServer server = this.server;
+
+        if (server != null)
+            register(server, created);
+
+        return created;
+    }
+
+    /**
+     * Forgets the metrics of a group that is gone, and unregisters its MBean.
+     * Whoever still holds them can publish on, unseen; a later
+     * {@link #group} with the name starts from zero.
+     */
+    public void remove(String name) {
+        GroupMetrics metrics = groups.remove(name);
+
+        if (metrics == null)
+            return;
+
+        MBeanServer server = this.server;
+
+        if (server != null)
+            unregister(server, metrics);
+    }
+
+    /**
+     * Current values of every group, by group name and metric name.
+     */
+    public Map<String, Map<String, Number>> snapshot() {
+        Map<String, Map<String, Number>> values = new LinkedHashMap<>();
+
+        for (GroupMetrics metrics : groups.values()) {
+            values.put(metrics.getGroup(), metrics.snapshot());
+        }
+
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Registers one MBean per group, now and for groups created later, under
+     * diffie-hellman:type=Group,name=&lt;group&gt;.
+     */
+    public synchronized void registerMBeans() {
+        if (server != null)
+            return;
+
+        server = ManagementFactory.getPlatformMBeanServer();
+
+        for (GroupMetrics metrics : groups.values()) {
+            register(server, metrics);
+        }
+    }
+
+    private static void register(MBeanServer server, GroupMetrics metrics) {
+        try {
+            server.registerMBean(new GroupMetricsMBean(metrics), objectName(metrics));
+        } catch (InstanceAlreadyExistsException e) {
+            /* registered by a concurrent call */
+        } catch (JMException e) {
+            throw new IllegalStateException("Can't register metrics of group " + metrics.getGroup(), e);
+        }
+    }
+
+    private static void unregister(MBeanServer server, GroupMetrics metrics) {
+        try {
+            server.unregisterMBean(objectName(metrics));
+        } catch (InstanceNotFoundException e) {
+            /* unregistered by a concurrent call */
+        } catch (JMException e) {
+            throw new IllegalStateException("Can't unregister metrics of group " + metrics.getGroup(), e);
+        }
+    }
+
+    private static ObjectName objectName(GroupMetrics metrics) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=Group,name=" + ObjectName.quote(metrics.getGroup()));
+    }
+}
@@ -1,9 +1,12 @@
 package participants;
 
 
+import crypto.GroupParameters;
+import utils.BranchUpdate;
 import utils.LinkedList;
 import utils.Pair;
 
+import java.math.BigInteger;
 import java.util.List;
 
 /**
@@ -16,17 +19,45 @@ public abstract class AbstractClient implements Client {
     @Override
     abstract public void leaveGroup(HierarchyLevel group);
 
-    abstract protected Pair<Long, Long> sendGroupParameters();
+    /**
+     * Id the member is known by on the wire.
+     */
+    abstract public long getId();
+
+    abstract protected GroupParameters sendGroupParameters();
 
     abstract protected LinkedList<Client> sendGroupClients();
 
+    abstract protected TreeSnapshot sendTreeSnapshot();
+
+    /**
+     * Takes over the group of a snapshot from the contact, with fresh keys.
+     */
+    abstract protected void acceptTreeSnapshot(TreeSnapshot snapshot);
+
     abstract protected void addClient(Client client);
 
     abstract protected void greetGroup();
 
     abstract protected void sendUpdatedBranch();
 
-    abstract protected void updateKeys(List<Pair<Pair<Integer, Integer>, Long>> changedBranch);
+    abstract protected void updateKeys(BranchUpdate changedBranch);
+
+    /**
+     * @deprecated use {@link #updateKeys(BranchUpdate)}
+     */
+    @Deprecated
+    protected void updateKeys(List<Pair<Pair<Integer, Integer>, BigInteger>> changedBranch) {
+        updateKeys(BranchUpdate.fromPairs(changedBranch));
+    }
+
+    /**
+     * Takes a branch the sender sent. Members that keep epochs first catch
+     * up with the sender when the branch shows they missed some.
+     */
+    protected void updateKeys(Client sender, BranchUpdate changedBranch) {
+        updateKeys(changedBranch);
+    }
 
     abstract protected void sayGoodbye();
 
@@ -35,4 +66,47 @@ public abstract class AbstractClient implements Client {
     abstract protected void resetParameters();
 
     abstract protected void resetKeys();
+
+    /**
+     * Handles a protocol message that came through a {@link Transport}.
+     */
+    protected void receive(Message message) {
+        switch (message.getType()) {
+            case GREET:
+                addClient(message.getSender());
+                break;
+            case GOODBYE:
+                removeClient(message.getSender());
+                break;
+            case BRANCH_UPDATE:
+                updateKeys(message.getSender(), message.getBranch());
+                break;
+            case TREE_SNAPSHOT:
+                acceptTreeSnapshot(message.getSnapshot());
+                break;
+        }
+    }
+
+    /**
+     * Handles messages in order. A message whose handler throws does not stop
+     * the rest; the first failure is rethrown at the end with the later ones
+     * suppressed.
+     */
+    protected void receive(List<Message> messages) {
+        RuntimeException failure = null;
+
+        for (Message message : messages) {
+            try {
+                receive(message);
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
 }
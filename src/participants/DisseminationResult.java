@@ -0,0 +1,40 @@
+package participants;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of delivering one message to a set of group members.
+ */
+public class DisseminationResult {
+    private final int recipients;
+    private final Map<Client, Throwable> failures;
+
+    public DisseminationResult(int recipients, Map<Client, Throwable> failures) {
+        this.recipients = recipients;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    public int getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Members whose delivery threw, with what they threw.
+     */
+    public Map<Client, Throwable> getFailures() {
+        return failures;
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "participants.DisseminationResult{" +
+                "recipients=" + recipients +
+                ", failures=" + failures.size() +
+                '}';
+    }
+}
@@ -0,0 +1,109 @@
+package participants;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers a protocol call to group members. Without an executor every
+ * member is called in turn on the caller's thread, as the protocol always
+ * did. With one, members are called in parallel: the caller gets a future
+ * right away, and a member that throws is reported in the result without
+ * holding up the others. Deliveries to one member from different sends may
+ * then overlap or arrive out of order, so members synchronize their handlers.
+ */
+public class Disseminator {
+    public static final Disseminator SYNCHRONOUS = new Disseminator(null);
+
+    interface Delivery {
+        void deliver(AbstractClient recipient);
+    }
+
+    private final Executor executor;
+
+    private final AtomicInteger inFlight;
+    private final Object idle;
+
+    public Disseminator(Executor executor) {
+        this.executor = executor;
+
+        inFlight = new AtomicInteger();
+        idle = new Object();
+    }
+
+    /**
+     * Concurrent disseminator on its own pool of daemon threads. On runtimes
+     * with virtual threads a virtual-thread-per-task executor can be passed to
+     * the constructor instead.
+     */
+    public static Disseminator withThreads(int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "dissemination");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        return new Disseminator(pool);
+    }
+
+    public boolean isConcurrent() {
+        return executor != null;
+    }
+
+    /**
+     * Blocks until every delivery started so far has finished, including
+     * deliveries started by recipients while handling theirs.
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idle) {
+            while (inFlight.get() > 0) {
+                idle.wait();
+            }
+        }
+    }
+
+    CompletableFuture<DisseminationResult> send(List<Client> recipients, Delivery delivery) {
+        if (executor == null) {
+            for (Client recipient : recipients) {
+                delivery.deliver((AbstractClient) recipient);
+            }
+
+            return CompletableFuture.completedFuture(
+                    new DisseminationResult(recipients.size(), Collections.<Client, Throwable>emptyMap()));
+        }
+
+        Map<Client, Throwable> failures = Collections.synchronizedMap(new IdentityHashMap<>());
+        CompletableFuture<?>[] deliveries = new CompletableFuture<?>[recipients.size()];
+
+        for (int i = 0; i < deliveries.length; ++i) {
+            Client recipient = recipients.get(i);
+            inFlight.incrementAndGet();
+
+            deliveries[i] = CompletableFuture
+                    .runAsync(() -> delivery.deliver((AbstractClient) recipient), executor)
+                    .whenComplete((ignored, failure) -> {
+                        if (failure != null)
+                            failures.put(recipient, failure.getCause() != null ? failure.getCause() : failure);
+
+                        finished();
+                    });
+        }
+
+        return CompletableFuture.allOf(deliveries)
+                .handle((ignored, failure) -> new DisseminationResult(deliveries.length, failures));
+    }
+
+    private void finished() {
+        if (inFlight.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+}
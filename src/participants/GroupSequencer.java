@@ -0,0 +1,101 @@
+package participants;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single writer of one group. Any thread can submit changes to the group;
+ * they only append to a lock-free queue, which at most one task at a time
+ * drains on the executor. The task applies up to maxBatch changes in order
+ * and reschedules itself while changes are left, so groups sharing an
+ * executor take turns and progress in parallel.
+ */
+final class GroupSequencer implements Runnable {
+    private final Executor executor;
+    private final int maxBatch;
+
+    private final Queue<Change> queue;
+    private final AtomicBoolean scheduled;
+
+    /* thread that is draining the queue, null between runs */
+    private volatile Thread writer;
+    private volatile Throwable lastFailure;
+
+    GroupSequencer(Executor executor, int maxBatch) {
+        if (executor == null)
+            throw new NullPointerException("Sequencer needs an executor");
+
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+
+        queue = new ConcurrentLinkedQueue<>();
+        scheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Queues the change; the future completes once the writer has applied
+     * it, exceptionally if the change threw.
+     */
+    CompletableFuture<Void> submit(Runnable action) {
+        Change change = new Change(action);
+
+        queue.offer(change);
+        schedule();
+
+        return change.done;
+    }
+
+    Throwable getLastFailure() {
+        return lastFailure;
+    }
+
+    boolean isWriter() {
+        return writer == Thread.currentThread();
+    }
+
+    private void schedule() {
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+            executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        writer = Thread.currentThread();
+
+        try {
+            Change change;
+
+            for (int applied = 0; applied < maxBatch && (change = queue.poll()) != null; ++applied) {
+                try {
+                    change.action.run();
+                    change.done.complete(null);
+                } catch (RuntimeException | Error failure) {
+                    lastFailure = failure;
+                    change.done.completeExceptionally(failure);
+                }
+            }
+        } finally {
+            writer = null;
+            scheduled.set(false);
+
+            /* a submit that lost the race for the flag sees it set and leaves its change to us */
+            schedule();
+        }
+    }
+
+    private static final class Change {
+        private final Runnable action;
+        private final CompletableFuture<Void> done;
+
+        private Change(Runnable action) {
+            this.action = action;
+            done = new CompletableFuture<>();
+        }
+    }
+}
@@ -1,16 +1,87 @@
 package participants;
 
+import metrics.GroupMetrics;
+import metrics.MetricsRegistry;
+import utils.BlindedTree;
+import utils.BranchUpdate;
 import utils.LinkedList;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
 /**
  * Created by Artem on 10.04.2016.
  */
 public class HierarchyLevel {
+    private static final AtomicLong nextName = new AtomicLong();
+
+    /* flushes batches whose window ran out, for all levels */
+    private static final ScheduledExecutorService batchTimer = newBatchTimer();
+
     private LinkedList<Person> clients;
 
+    private final String name;
+    private final GroupMetrics metrics;
+
+    /* batch rekeying is off while maxBatchSize is 0 */
+    private int maxBatchSize;
+    private long batchWindow;
+    private long batchStart;
+
+    /* batches begun so far, and the timed flush of the current one */
+    private long batches;
+    private ScheduledFuture<?> batchDeadline;
+
+    private List<Person> pendingJoins;
+    private List<Person> pendingLeaves;
+
+    /* single writer of the group, null while changes run on the caller's thread */
+    private volatile GroupSequencer sequencer;
+
+    /* pool the members compute on in a coordinated rekey, null for the caller's thread */
+    private volatile ForkJoinPool computePool;
+    private volatile int computeCutoff;
+
+    /* level this one is nested in, and the leaf that stands for this one there */
+    private volatile HierarchyLevel parent;
+    private volatile Subgroup leaf;
+
     public HierarchyLevel(Person client) {
-        clients = new LinkedList<>();
+        this(client, "group-" + nextName.getAndIncrement());
+    }
+
+    /**
+     * @param name tag of the group's metrics
+     */
+    public HierarchyLevel(Person client, String name) {
+        this.name = name;
+        metrics = MetricsRegistry.getDefault().group(name);
+
+        clients = new LinkedList<>(true);
         clients.add(client);
+
+        client.setMetrics(metrics);
+        metrics.members().set(1);
+
+        maxBatchSize = 0;
+        pendingJoins = new ArrayList<>();
+        pendingLeaves = new ArrayList<>();
     }
 
     public Person sendContactClient() {
@@ -18,7 +89,599 @@ public class HierarchyLevel {
     }
 
     public void removeClient(Person person) {
-        /* TODO: what if it is last client? */
         clients.remove(person);
+        metrics.members().set(clients.size());
+
+        if (clients.isEmpty())
+            removeMetrics();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public GroupMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Group key of this level as its contact member sees it, or null while
+     * there is none. Never blocks.
+     */
+    public BigInteger getGroupKey() {
+        LinkedList<Person> members = clients;
+
+        if (members.isEmpty())
+            return null;
+
+        return members.getLast().getGroupKey();
+    }
+
+    public HierarchyLevel getParent() {
+        return parent;
+    }
+
+    /**
+     * Makes this level a single member of the parent level. A
+     * {@link Subgroup} leaf whose secret key is the group key of this level
+     * joins the parent, and from then on changes of this level only refresh
+     * that leaf: the parent level recomputes one path instead of taking
+     * every member of this level into its tree.
+     */
+    public void nestIn(HierarchyLevel parent) {
+        if (this.parent != null)
+            throw new IllegalStateException("Level " + name + " is nested already");
+
+        for (HierarchyLevel level = parent; level != null; level = level.parent) {
+            if (level == this)
+                throw new IllegalArgumentException("Can't nest level " + name + " under itself");
+        }
+
+        Subgroup subgroup = new Subgroup(this);
+
+        this.parent = parent;
+        leaf = subgroup;
+
+        subgroup.joinGroup(parent);
+    }
+
+    /**
+     * Takes this level out of its parent level: its leaf leaves there.
+     */
+    public void leaveParent() {
+        if (parent == null)
+            throw new IllegalStateException("Level " + name + " is not nested");
+
+        Subgroup subgroup = leaf;
+        HierarchyLevel level = parent;
+
+        leaf = null;
+        parent = null;
+
+        subgroup.leaveGroup(level);
+    }
+
+    /**
+     * Takes the current group key of this level into the parent level, as
+     * the secret key of this level's leaf there, and so on upwards. Joins,
+     * leaves and the other changes of this level do it before they return;
+     * with asynchronous delivery the key may not be agreed by then, so call
+     * it again once the level's messages are delivered.
+     */
+    public void refreshParent() {
+        Subgroup subgroup = leaf;
+        HierarchyLevel level = parent;
+
+        if (subgroup != null && level != null)
+            level.submit(subgroup::refresh);
+    }
+
+    /**
+     * Removes many members at once, as when a network partition cuts them
+     * off. Every remaining member prunes its tree in one pass, and only one
+     * sponsor per changed part of the tree picks fresh keys. Queued batch
+     * events are applied along with it.
+     */
+    public synchronized void partition(Collection<? extends Person> leaving) {
+        for (Person person : leaving) {
+            if (clients.contains(person) && !pendingLeaves.contains(person))
+                pendingLeaves.add(person);
+        }
+
+        flush();
+    }
+
+    /**
+     * Rebuilds every member's tree with the lowest height possible once it
+     * has grown more than slack levels beyond it, and agrees on keys for the
+     * new nodes in one coordinated rekey. Parts of the tree that are balanced
+     * already keep their keys.
+     *
+     * @return true if the tree was rebuilt
+     */
+    public boolean rebalance(int slack) {
+        flush();
+
+        if (clients.isEmpty() || sendContactClient().treeSlack() <= slack)
+            return false;
+
+        for (Person member : clients) {
+            member.rebalanceTree();
+        }
+
+        nextEpoch();
+        rekey();
+        refreshParent();
+
+        return true;
+    }
+
+    /**
+     * Gives the group a single writer on the executor. Joins, leaves and
+     * rejoins from any thread are then queued without locking and applied
+     * by the writer one after another, up to maxBatch per turn, and
+     * joinGroup, leaveGroup and rejoin return once the change is queued.
+     * Groups that share the executor are updated in parallel. Other changes
+     * to the group, like partition, merge or flush, have to go through
+     * {@link #submit} as well then. With batch rekeying on, the writer feeds
+     * the queued changes into the batch.
+     */
+    public void sequenceOn(Executor executor, int maxBatch) {
+        sequencer = new GroupSequencer(executor, maxBatch);
+    }
+
+    public boolean isSequenced() {
+        return sequencer != null;
+    }
+
+    /**
+     * Lets coordinated rekeys, after a batch, a rebalance or a merge, compute
+     * on the pool. Within a round every member computes its own path from
+     * its own tree, so the members are split in halves, which after a bulk
+     * build are the members under sibling subtrees, down to parts of at most
+     * cutoff members that one task computes in turn. A null pool computes
+     * on the caller's thread again.
+     *
+     * The work is split per member and not inside a DHTree: a member's
+     * tree holds secret keys only on its own path, one chain of dependent
+     * agreements, so there are no independent subtrees to fork there.
+     */
+    public void computeOn(ForkJoinPool pool, int cutoff) {
+        if (cutoff < 1)
+            throw new IllegalArgumentException("Cutoff must be positive: " + cutoff);
+
+        computeCutoff = cutoff;
+        computePool = pool;
+    }
+
+    /**
+     * Runs the change as the writer of the group, after the changes queued
+     * before it. Without a writer, or on the writer itself, it runs right
+     * away on the calling thread.
+     *
+     * @return completes once the change has run, exceptionally if it threw
+     */
+    public CompletableFuture<Void> submit(Runnable change) {
+        GroupSequencer current = sequencer;
+
+        if (current != null && !current.isWriter())
+            return current.submit(change);
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+
+        try {
+            change.run();
+            done.complete(null);
+        } catch (RuntimeException | Error failure) {
+            done.completeExceptionally(failure);
+        }
+
+        return done;
+    }
+
+    /**
+     * Last change the writer failed to apply, or null. Joins and leaves
+     * queued by joinGroup and leaveGroup report their failures only here.
+     */
+    public Throwable getLastFailure() {
+        GroupSequencer current = sequencer;
+        return current != null ? current.getLastFailure() : null;
+    }
+
+    /**
+     * Queues joins and leaves instead of rekeying on each of them. The queue
+     * is applied as one tree update once it holds maxBatchSize events, or
+     * batchWindow milliseconds after the oldest queued one, by a timer if no
+     * other event comes; Long.MAX_VALUE waits for the size only. A timed
+     * flush goes through the writer of a sequenced level; otherwise it runs
+     * on the timer's thread, under the lock of the level that queueing and
+     * flushing take. {@link #flush()} applies the queue right away.
+     */
+    public synchronized void enableBatchRekey(int maxBatchSize, long batchWindow) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+
+        if (batchWindow < 0)
+            throw new IllegalArgumentException("Batch window must not be negative: " + batchWindow);
+
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindow = batchWindow;
+    }
+
+    public synchronized void disableBatchRekey() {
+        flush();
+        maxBatchSize = 0;
+    }
+
+    public boolean isBatching() {
+        return maxBatchSize > 0;
+    }
+
+    /**
+     * Applies all queued joins and leaves: every member updates its tree once,
+     * and then keys are agreed in rounds. In each round every member
+     * recomputes what it can of its path, and the new blinded keys of all
+     * members go out as one combined branch.
+     */
+    public synchronized void flush() {
+        if (pendingJoins.isEmpty() && pendingLeaves.isEmpty())
+            return;
+
+        List<Person> joins = new ArrayList<>(pendingJoins);
+        List<Person> leaves = new ArrayList<>(pendingLeaves);
+
+        pendingJoins.clear();
+        pendingLeaves.clear();
+
+        if (batchDeadline != null) {
+            batchDeadline.cancel(false);
+            batchDeadline = null;
+        }
+
+        Set<Person> sponsors = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Person leaver : leaves) {
+            clients.remove(leaver);
+        }
+
+        if (!leaves.isEmpty()) {
+            for (Person member : clients) {
+                if (member.dismiss(leaves))
+                    sponsors.add(member);
+            }
+        }
+
+        for (Person leaver : leaves) {
+            leaver.detach();
+        }
+
+        metrics.leaves().add(leaves.size());
+        metrics.joins().add(joins.size());
+
+        if (clients.isEmpty()) {
+            if (joins.isEmpty()) {
+                metrics.members().set(0);
+                removeMetrics();
+                return;
+            }
+
+            Person founder = joins.remove(0);
+            founder.setMetrics(metrics);
+            clients.add(founder);
+        }
+
+        Person contact = clients.getLast();
+
+        if (joins.size() >= clients.size()) {
+            /* forming the group, or most of it: one bulk build beats a graft per joiner */
+            List<Person> members = new ArrayList<>();
+
+            for (Person member : clients) {
+                members.add(member);
+            }
+
+            for (Person joiner : joins) {
+                clients.add(joiner);
+            }
+
+            for (Person member : members) {
+                member.rebuild(clients);
+            }
+        } else {
+            for (Person joiner : joins) {
+                for (Person member : clients) {
+                    member.admit(joiner);
+                }
+
+                clients.add(joiner);
+            }
+        }
+
+        for (Person joiner : joins) {
+            joiner.attach(contact);
+            joiner.setMetrics(metrics);
+        }
+
+        metrics.members().set(clients.size());
+
+        for (Person sponsor : sponsors) {
+            if (clients.contains(sponsor))
+                sponsor.resetKeys();
+        }
+
+        nextEpoch();
+        rekey();
+        refreshParent();
+    }
+
+    /**
+     * Merges another group into this one. The tree of the smaller group is
+     * hung into the tree of the larger one, and keys are agreed with one
+     * branch from a sponsor on each side instead of a join per member.
+     * Afterwards all members belong to this level and the other one is empty.
+     */
+    public void merge(HierarchyLevel other) {
+        if (other == this)
+            throw new IllegalArgumentException("Can't merge a group with itself");
+
+        flush();
+        other.flush();
+
+        if (other.clients.isEmpty())
+            return;
+
+        if (clients.isEmpty())
+            throw new IllegalStateException("Can't merge into an empty group");
+
+        Person contact = sendContactClient();
+        Person other_contact = other.sendContactClient();
+
+        if (!contact.sendGroupParameters().equals(other_contact.sendGroupParameters()))
+            throw new IllegalArgumentException("Groups use different parameters");
+
+        boolean hosting = clients.size() >= other.clients.size();
+
+        BlindedTree tree = contact.sendBlindedTree();
+        BlindedTree other_tree = other_contact.sendBlindedTree();
+
+        Person sponsor = null;
+        Person other_sponsor = null;
+
+        for (Person member : clients) {
+            if (member.mergeGroup(other_tree, hosting))
+                sponsor = member;
+        }
+
+        for (Person member : other.clients) {
+            if (member.mergeGroup(tree, !hosting))
+                other_sponsor = member;
+        }
+
+        for (Person member : other.clients) {
+            clients.add(member);
+            member.setMetrics(metrics);
+        }
+
+        other.clients.clear();
+
+        metrics.members().set(clients.size());
+        other.metrics.members().set(0);
+        other.removeMetrics();
+
+        nextEpoch();
+
+        /* the hosting sponsor answers the guest sponsor's branch */
+        (hosting ? other_sponsor : sponsor).rekey();
+
+        refreshParent();
+
+        if (other.parent != null)
+            other.leaveParent();
+    }
+
+    /**
+     * Queues the change for the writer, unless there is none or this is the
+     * writer's thread.
+     *
+     * @return false if the caller has to apply the change itself
+     */
+    boolean defer(Runnable change) {
+        GroupSequencer current = sequencer;
+
+        if (current == null || current.isWriter())
+            return false;
+
+        current.submit(change);
+        return true;
+    }
+
+    void addClient(Person person) {
+        clients.add(person);
+        metrics.members().set(clients.size());
+    }
+
+    /**
+     * Puts a restarted member in place of its earlier incarnation, the member
+     * with the same id.
+     */
+    void readmit(Person person) {
+        for (Person member : clients) {
+            if (member.equals(person)) {
+                if (member == person)
+                    return;
+
+                clients.remove(member);
+                break;
+            }
+        }
+
+        clients.add(person);
+        metrics.members().set(clients.size());
+    }
+
+    synchronized void enqueueJoin(Person person) {
+        if (!pendingLeaves.remove(person))
+            pendingJoins.add(person);
+
+        eventQueued();
+    }
+
+    synchronized void enqueueLeave(Person person) {
+        /* a member leaves once, however often it asks */
+        if (pendingLeaves.contains(person))
+            return;
+
+        if (!pendingJoins.remove(person))
+            pendingLeaves.add(person);
+
+        eventQueued();
+    }
+
+    /**
+     * Takes the metrics of this level out of the registry once it has no
+     * members left.
+     */
+    private void removeMetrics() {
+        MetricsRegistry.getDefault().remove(name);
+    }
+
+    private void eventQueued() {
+        long now = System.currentTimeMillis();
+        int queued = pendingJoins.size() + pendingLeaves.size();
+
+        if (queued == 1) {
+            long batch = ++batches;
+            batchStart = now;
+
+            if (batchWindow < Long.MAX_VALUE && queued < maxBatchSize)
+                batchDeadline = batchTimer.schedule(() -> submit(() -> flushExpired(batch)),
+                        batchWindow, TimeUnit.MILLISECONDS);
+        }
+
+        if (queued >= maxBatchSize || now - batchStart >= batchWindow)
+            flush();
+    }
+
+    /**
+     * Flushes the batch, unless it was flushed already.
+     */
+    private synchronized void flushExpired(long batch) {
+        if (batch == batches)
+            flush();
+    }
+
+    private static ScheduledExecutorService newBatchTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "batch-window");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /* most batches fill up before their window runs out */
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Moves all members on to one new epoch after the level changed all
+     * their trees at once, so that nobody replays branches across it.
+     */
+    private void nextEpoch() {
+        long epoch = 0;
+
+        for (Person member : clients) {
+            epoch = Math.max(epoch, member.getEpoch());
+        }
+
+        for (Person member : clients) {
+            member.restartLog(epoch + 1);
+        }
+    }
+
+    private void rekey() {
+        Person[] members = new Person[clients.size()];
+        BranchUpdate[] branches = new BranchUpdate[members.length];
+        int rounds = 0;
+        int count = 0;
+
+        for (Person member : clients) {
+            members[count++] = member;
+        }
+
+        while (true) {
+            BranchUpdate combined = new BranchUpdate();
+            Set<Long> seen = new HashSet<>();
+
+            forEachMember(members.length, i -> {
+                members[i].recomputeKeys();
+                branches[i] = members[i].takeRecomputedBranch();
+            });
+
+            /* in member order, so the combined branch does not depend on the split */
+            for (BranchUpdate branch : branches) {
+                for (int i = 0; i < branch.size(); ++i) {
+                    if (seen.add(((long) branch.getLevel(i) << 32) | branch.getIndex(i)))
+                        combined.add(branch.getLevel(i), branch.getIndex(i), branch.getKey(i));
+                }
+            }
+
+            if (combined.isEmpty())
+                return;
+
+            if (++rounds > clients.size())
+                throw new IllegalStateException("Members do not agree on the group tree");
+
+            metrics.branchLength().record(combined.size());
+            metrics.messagesSent().add(clients.size());
+
+            forEachMember(members.length, i -> members[i].applyBranch(combined));
+        }
+    }
+
+    private void forEachMember(int count, IntConsumer action) {
+        ForkJoinPool pool = computePool;
+
+        if (pool == null || count <= computeCutoff) {
+            for (int i = 0; i < count; ++i) {
+                action.accept(i);
+            }
+
+            return;
+        }
+
+        pool.invoke(new MemberRange(0, count, computeCutoff, action));
+    }
+
+    /**
+     * Members from..to of a rekey round, split in halves down to the cutoff.
+     */
+    private static final class MemberRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final int cutoff;
+        private final IntConsumer action;
+
+        private MemberRange(int from, int to, int cutoff, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= cutoff) {
+                for (int i = from; i < to; ++i) {
+                    action.accept(i);
+                }
+
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+
+            invokeAll(new MemberRange(from, middle, cutoff, action), new MemberRange(middle, to, cutoff, action));
+        }
     }
 }
@@ -0,0 +1,234 @@
+package participants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport between members of the same process. Every recipient has a
+ * lock-free inbound queue; a send only appends to it. The queue is drained
+ * on the executor by at most one task at a time, which hands the recipient
+ * up to maxBatch messages at once and reschedules itself while messages are
+ * left, so a busy recipient does not starve the others.
+ */
+public class InMemoryTransport implements Transport {
+    private static final int BUSY = 0;
+    private static final int CHANGED = 1;
+    private static final int SETTLED = 2;
+
+    private final Executor executor;
+    private final int maxBatch;
+
+    private final ConcurrentMap<Client, Mailbox> mailboxes;
+    private final Map<Client, Throwable> failures;
+
+    private final AtomicInteger pending;
+    private final Object idle;
+
+    /* threads in awaitIdle for some members, which a drained mailbox wakes */
+    private final AtomicInteger waiting;
+
+    public InMemoryTransport(Executor executor, int maxBatch) {
+        if (executor == null)
+            throw new NullPointerException("Transport needs an executor");
+
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+
+        mailboxes = new ConcurrentHashMap<>();
+        failures = Collections.synchronizedMap(new IdentityHashMap<>());
+
+        pending = new AtomicInteger();
+        idle = new Object();
+        waiting = new AtomicInteger();
+    }
+
+    /**
+     * Transport on its own pool of daemon threads.
+     */
+    public static InMemoryTransport withThreads(int threads, int maxBatch) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "transport");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        return new InMemoryTransport(pool, maxBatch);
+    }
+
+    @Override
+    public void send(Client recipient, Message message) {
+        Mailbox mailbox = mailboxes.get(recipient);
+
+        if (mailbox == null)
+            mailbox = mailboxes.computeIfAbsent(recipient, client -> new Mailbox((AbstractClient) client));
+
+        pending.incrementAndGet();
+        mailbox.pending.incrementAndGet();
+        mailbox.received.incrementAndGet();
+        mailbox.queue.offer(message);
+        mailbox.schedule();
+    }
+
+    /**
+     * Blocks until every message sent so far has been handled, including
+     * messages sent by recipients while handling theirs.
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idle) {
+            while (pending.get() > 0) {
+                idle.wait();
+            }
+        }
+    }
+
+    /**
+     * Blocks until the mailboxes of the members are drained, only waking on
+     * mailboxes that drain. As a member handling a message may send the
+     * others more, the members count as idle once two passes over them in a
+     * row find nothing queued and nothing received in between.
+     */
+    @Override
+    public void awaitIdle(Collection<? extends Client> members) throws InterruptedException {
+        long[] received = new long[members.size()];
+        Arrays.fill(received, -1);
+
+        waiting.incrementAndGet();
+
+        try {
+            synchronized (idle) {
+                while (true) {
+                    int state = collect(members, received);
+
+                    if (state == SETTLED)
+                        return;
+
+                    if (state == BUSY)
+                        idle.wait();
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Last failure of every recipient whose handler threw. The failed message
+     * is dropped and the rest of its queue is still delivered.
+     */
+    public Map<Client, Throwable> getFailures() {
+        synchronized (failures) {
+            return new IdentityHashMap<>(failures);
+        }
+    }
+
+    /**
+     * Forgets the queue of a member that left, once it has been drained.
+     */
+    public void unregister(Client client) {
+        Mailbox mailbox = mailboxes.get(client);
+
+        if (mailbox != null && mailbox.pending.get() == 0)
+            mailboxes.remove(client, mailbox);
+    }
+
+    /**
+     * One pass of awaitIdle over the members: BUSY if a mailbox has messages,
+     * CHANGED if one received any since the last pass, SETTLED otherwise.
+     */
+    private int collect(Collection<? extends Client> members, long[] received) {
+        int state = SETTLED;
+        int i = 0;
+
+        for (Client member : members) {
+            Mailbox mailbox = mailboxes.get(member);
+
+            if (mailbox != null && mailbox.pending.get() > 0)
+                return BUSY;
+
+            long count = mailbox != null ? mailbox.received.get() : 0;
+
+            if (received[i] != count)
+                state = CHANGED;
+
+            received[i++] = count;
+        }
+
+        return state;
+    }
+
+    private void handled(Mailbox mailbox, int messages) {
+        boolean drained = mailbox.pending.addAndGet(-messages) == 0;
+
+        if (pending.addAndGet(-messages) == 0 || drained && waiting.get() > 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private final class Mailbox implements Runnable {
+        private final AbstractClient recipient;
+        private final Queue<Message> queue;
+        private final AtomicBoolean scheduled;
+
+        /* messages not handled yet, and all ever sent here */
+        private final AtomicInteger pending;
+        private final AtomicLong received;
+
+        private Mailbox(AbstractClient recipient) {
+            this.recipient = recipient;
+
+            queue = new ConcurrentLinkedQueue<>();
+            scheduled = new AtomicBoolean();
+
+            pending = new AtomicInteger();
+            received = new AtomicLong();
+        }
+
+        private void schedule() {
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            List<Message> batch = new ArrayList<>(maxBatch);
+            Message message;
+
+            while (batch.size() < maxBatch && (message = queue.poll()) != null) {
+                batch.add(message);
+            }
+
+            try {
+                recipient.receive(batch);
+            } catch (RuntimeException | Error failure) {
+                failures.put(recipient, failure);
+            } finally {
+                scheduled.set(false);
+
+                /* a send that lost the race for the flag sees it set and leaves its message to us */
+                schedule();
+
+                handled(this, batch.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package participants;
+
+/**
+ * Finds members by the id they are known by on the wire.
+ */
+public interface MemberDirectory {
+    /**
+     * @throws java.util.NoSuchElementException if no member has the id
+     */
+    Client lookup(long id);
+}
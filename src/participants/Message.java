@@ -0,0 +1,88 @@
+package participants;
+
+import utils.BranchUpdate;
+
+/**
+ * Protocol message one member sends another.
+ */
+public final class Message {
+    public enum Type {
+        /* sender joins the group */
+        GREET,
+        /* sender leaves the group */
+        GOODBYE,
+        /* sender publishes new blinded keys */
+        BRANCH_UPDATE,
+        /* sender hands a newcomer the group it joins */
+        TREE_SNAPSHOT
+    }
+
+    private final Type type;
+    private final Client sender;
+    private final BranchUpdate branch;
+    private final TreeSnapshot snapshot;
+
+    private Message(Type type, Client sender, BranchUpdate branch, TreeSnapshot snapshot) {
+        if (sender == null)
+            throw new NullPointerException("Message needs a sender");
+
+        this.type = type;
+        this.sender = sender;
+        this.branch = branch;
+        this.snapshot = snapshot;
+    }
+
+    public static Message greet(Client sender) {
+        return new Message(Type.GREET, sender, null, null);
+    }
+
+    public static Message goodbye(Client sender) {
+        return new Message(Type.GOODBYE, sender, null, null);
+    }
+
+    public static Message branchUpdate(Client sender, BranchUpdate branch) {
+        if (branch == null)
+            throw new NullPointerException("Branch update needs a branch");
+
+        return new Message(Type.BRANCH_UPDATE, sender, branch, null);
+    }
+
+    public static Message treeSnapshot(Client sender, TreeSnapshot snapshot) {
+        if (snapshot == null)
+            throw new NullPointerException("Tree snapshot message needs a snapshot");
+
+        return new Message(Type.TREE_SNAPSHOT, sender, null, snapshot);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Client getSender() {
+        return sender;
+    }
+
+    /**
+     * Blinded keys of a BRANCH_UPDATE, null for the other types.
+     */
+    public BranchUpdate getBranch() {
+        return branch;
+    }
+
+    /**
+     * Group of a TREE_SNAPSHOT, null for the other types.
+     */
+    public TreeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "participants.Message{" +
+                "type=" + type +
+                ", sender=" + sender +
+                (branch != null ? ", branch=" + branch : "") +
+                (snapshot != null ? ", snapshot=" + snapshot : "") +
+                '}';
+    }
+}
@@ -0,0 +1,235 @@
+package participants;
+
+import crypto.GroupParameters;
+import utils.BlindedTree;
+import utils.BranchUpdate;
+import utils.KeyEncoding;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of protocol messages. Numbers are big-endian, keys are
+ * unsigned magnitudes with a two byte length. A frame is
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   type
+ * long   recipient id
+ * long   sender id
+ * ...    payload of the type
+ * </pre>
+ *
+ * GREET and GOODBYE have no payload. BRANCH_UPDATE is a long epoch and an
+ * unsigned short count of (byte level, int index, key) entries.
+ * TREE_SNAPSHOT is a byte group type, p and g for finite-field groups, a
+ * long epoch and an int count of tree nodes, followed by the nodes in
+ * pre-order: a long member id, -1 for inner nodes, and a key, whose length
+ * 0xFFFF stands for no key.
+ */
+public final class MessageCodec {
+    public static final int LENGTH_SIZE = 4;
+
+    private static final int HEADER_SIZE = 1 + 8 + 8;
+
+    public static final int MIN_FRAME_SIZE = LENGTH_SIZE + HEADER_SIZE;
+    private static final int RECIPIENT_OFFSET = LENGTH_SIZE + 1;
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Bytes the frame of the message takes, length prefix included.
+     */
+    public static int frameSize(Message message) {
+        int size = LENGTH_SIZE + HEADER_SIZE;
+
+        switch (message.getType()) {
+            case BRANCH_UPDATE:
+                BranchUpdate branch = message.getBranch();
+                size += 8 + 2;
+
+                for (int i = 0; i < branch.size(); ++i) {
+                    size += 1 + 4 + KeyEncoding.size(branch.getKey(i));
+                }
+                break;
+            case TREE_SNAPSHOT:
+                TreeSnapshot snapshot = message.getSnapshot();
+                BlindedTree tree = snapshot.getTree();
+                size += KeyEncoding.size(snapshot.getParameters()) + 8 + 4;
+
+                for (int i = 0; i < tree.size(); ++i) {
+                    size += 8 + KeyEncoding.size(tree.getKey(i));
+                }
+                break;
+            default:
+                break;
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes the frame at the position of out and moves past it.
+     *
+     * @throws java.nio.BufferOverflowException if out has less than
+     *                                          {@link #frameSize} bytes left
+     */
+    public static void encode(long recipient, Message message, ByteBuffer out) {
+        int start = out.position();
+
+        out.putInt(0);
+        out.put((byte) message.getType().ordinal());
+        out.putLong(recipient);
+        out.putLong(idOf(message.getSender()));
+
+        switch (message.getType()) {
+            case BRANCH_UPDATE:
+                BranchUpdate branch = message.getBranch();
+
+                if (branch.size() > 0xFFFF)
+                    throw new IllegalArgumentException("Branch too long for one message: " + branch.size());
+
+                out.putLong(branch.getEpoch());
+                out.putShort((short) branch.size());
+
+                for (int i = 0; i < branch.size(); ++i) {
+                    if (branch.getLevel(i) > 0xFF)
+                        throw new IllegalArgumentException("Level does not fit a byte: " + branch.getLevel(i));
+
+                    out.put((byte) branch.getLevel(i));
+                    out.putInt(branch.getIndex(i));
+                    KeyEncoding.put(out, branch.getKey(i));
+                }
+                break;
+            case TREE_SNAPSHOT:
+                TreeSnapshot snapshot = message.getSnapshot();
+
+                KeyEncoding.put(out, snapshot.getParameters());
+                out.putLong(snapshot.getEpoch());
+                BlindedTree tree = snapshot.getTree();
+                out.putInt(tree.size());
+
+                for (int i = 0; i < tree.size(); ++i) {
+                    Client member = tree.getClient(i);
+
+                    out.putLong(member != null ? idOf(member) : KeyEncoding.INNER_NODE);
+                    KeyEncoding.put(out, tree.getKey(i));
+                }
+                break;
+            default:
+                break;
+        }
+
+        out.putInt(start, out.position() - start - LENGTH_SIZE);
+    }
+
+    /**
+     * Length of the frame starting at the position of in, or -1 if the
+     * length prefix has not arrived yet.
+     */
+    public static int frameLength(ByteBuffer in) {
+        if (in.remaining() < LENGTH_SIZE)
+            return -1;
+
+        return LENGTH_SIZE + in.getInt(in.position());
+    }
+
+    /**
+     * Recipient of the whole frame at the position of in.
+     */
+    public static long recipient(ByteBuffer in) {
+        return in.getLong(in.position() + RECIPIENT_OFFSET);
+    }
+
+    /**
+     * Reads the whole frame at the position of in and moves past it.
+     *
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static Message decode(ByteBuffer in, MemberDirectory directory) {
+        int end = in.position() + frameLength(in);
+        int limit = in.limit();
+
+        if (end > limit || end < in.position() + MIN_FRAME_SIZE)
+            throw new IllegalArgumentException("Incomplete frame");
+
+        in.limit(end);
+
+        try {
+            in.getInt();
+
+            int type = in.get() & 0xFF;
+
+            if (type >= TYPES.length)
+                throw new IllegalArgumentException("Unknown message type: " + type);
+
+            in.getLong();
+            Client sender = directory.lookup(in.getLong());
+            Message message;
+
+            switch (TYPES[type]) {
+                case GREET:
+                    message = Message.greet(sender);
+                    break;
+                case GOODBYE:
+                    message = Message.goodbye(sender);
+                    break;
+                case BRANCH_UPDATE:
+                    long branch_epoch = in.getLong();
+                    int entries = in.getShort() & 0xFFFF;
+                    BranchUpdate branch = new BranchUpdate(entries);
+
+                    branch.setEpoch(branch_epoch);
+
+                    for (int i = 0; i < entries; ++i) {
+                        int level = in.get() & 0xFF;
+                        int index = in.getInt();
+
+                        branch.add(level, index, KeyEncoding.getRequired(in));
+                    }
+
+                    message = Message.branchUpdate(sender, branch);
+                    break;
+                default:
+                    GroupParameters parameters = KeyEncoding.getParameters(in);
+                    long epoch = in.getLong();
+                    int count = in.getInt();
+
+                    if (count < 1 || count > in.remaining() / 10)
+                        throw new IllegalArgumentException("Bad node count: " + count);
+
+                    Client[] members = new Client[count];
+                    BigInteger[] keys = new BigInteger[count];
+
+                    for (int i = 0; i < count; ++i) {
+                        long id = in.getLong();
+
+                        members[i] = id != KeyEncoding.INNER_NODE ? directory.lookup(id) : null;
+                        keys[i] = KeyEncoding.get(in);
+                    }
+
+                    BlindedTree tree = new BlindedTree(members, keys);
+                    message = Message.treeSnapshot(sender, new TreeSnapshot(parameters, tree, epoch));
+                    break;
+            }
+
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("Trailing bytes in " + TYPES[type] + " frame");
+
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        } finally {
+            in.limit(limit);
+            in.position(end);
+        }
+    }
+
+    private static long idOf(Client client) {
+        return ((AbstractClient) client).getId();
+    }
+}
@@ -0,0 +1,542 @@
+package participants;
+
+import utils.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport between processes over TCP. Each endpoint hosts some members
+ * and knows at which endpoint the others are. Messages for hosted members
+ * skip the socket; the others are encoded by the sender into a pooled
+ * direct buffer and written by a single selector thread, several buffers
+ * per write. Received frames are decoded straight from the read buffer and
+ * handed to the hosted member through an {@link InMemoryTransport}, so
+ * handlers never run on the selector thread.
+ *
+ * Messages from one endpoint to another keep their order. Messages from
+ * different endpoints to one member may interleave.
+ */
+public class NioTransport implements Transport, Closeable {
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    private final MemberDirectory directory;
+    private final InMemoryTransport local;
+    private final BufferPool buffers;
+
+    private final ConcurrentMap<Long, AbstractClient> hosted;
+    private final ConcurrentMap<Long, InetSocketAddress> routes;
+    private final ConcurrentMap<InetSocketAddress, Connection> connections;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Queue<Connection> interest;
+    private final Thread selectorThread;
+
+    private final AtomicInteger unsent;
+    private final AtomicLong undeliverable;
+    private final AtomicLong failedFrames;
+    private final Object idle;
+
+    private volatile boolean closed;
+
+    /**
+     * Listens on the address; port 0 picks a free one, see {@link #getAddress()}.
+     */
+    public NioTransport(InetSocketAddress address, MemberDirectory directory, InMemoryTransport local)
+            throws IOException {
+        if (directory == null || local == null)
+            throw new NullPointerException("Transport needs a directory and a local transport");
+
+        this.directory = directory;
+        this.local = local;
+
+        buffers = new BufferPool(16 * 1024, 1024);
+
+        hosted = new ConcurrentHashMap<>();
+        routes = new ConcurrentHashMap<>();
+        connections = new ConcurrentHashMap<>();
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        interest = new ConcurrentLinkedQueue<>();
+
+        unsent = new AtomicInteger();
+        undeliverable = new AtomicLong();
+        failedFrames = new AtomicLong();
+        idle = new Object();
+
+        selectorThread = new Thread(this::select, "transport-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Receives messages for the member at this endpoint.
+     */
+    public void host(AbstractClient member) {
+        hosted.put(member.getId(), member);
+    }
+
+    /**
+     * Sends messages for the member with the id to another endpoint.
+     */
+    public void route(long id, InetSocketAddress endpoint) {
+        routes.put(id, endpoint);
+    }
+
+    @Override
+    public void send(Client recipient, Message message) {
+        if (closed)
+            throw new IllegalStateException("Transport is closed");
+
+        long id = ((AbstractClient) recipient).getId();
+
+        if (hosted.containsKey(id)) {
+            local.send(recipient, message);
+            return;
+        }
+
+        InetSocketAddress endpoint = routes.get(id);
+
+        if (endpoint == null)
+            throw new NoSuchElementException("No route to member " + id);
+
+        ByteBuffer frame = buffers.acquire(MessageCodec.frameSize(message));
+        MessageCodec.encode(id, message, frame);
+        frame.flip();
+
+        while (true) {
+            Connection connection = connections.computeIfAbsent(endpoint, Connection::new);
+
+            unsent.incrementAndGet();
+            connection.unsent.incrementAndGet();
+            connection.outbound.offer(frame);
+
+            /* a connection lost before the offer has drained already, take the frame back to a new one */
+            if (connection.dead) {
+                if (!connection.outbound.remove(frame))
+                    return;
+
+                written(connection, 1);
+                continue;
+            }
+
+            if (connection.flushing.compareAndSet(false, true)) {
+                interest.offer(connection);
+                selector.wakeup();
+            }
+
+            return;
+        }
+    }
+
+    /**
+     * Blocks until everything sent from this endpoint is written to the
+     * sockets and everything received so far is handled.
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idle) {
+            while (unsent.get() > 0) {
+                idle.wait();
+            }
+        }
+
+        local.awaitIdle();
+    }
+
+    /**
+     * Blocks until the members hosted here have handled their messages and
+     * the frames for the others are written to the sockets. Frames still on
+     * the wire or queued at another endpoint are not seen, so this orders a
+     * group's membership events only as far as this endpoint takes part in
+     * them.
+     */
+    @Override
+    public void awaitIdle(Collection<? extends Client> members) throws InterruptedException {
+        List<Client> local_members = new ArrayList<>();
+        Set<InetSocketAddress> endpoints = new HashSet<>();
+
+        for (Client member : members) {
+            long id = ((AbstractClient) member).getId();
+
+            if (hosted.containsKey(id)) {
+                local_members.add(member);
+            } else {
+                InetSocketAddress endpoint = routes.get(id);
+
+                if (endpoint != null)
+                    endpoints.add(endpoint);
+            }
+        }
+
+        synchronized (idle) {
+            for (InetSocketAddress endpoint : endpoints) {
+                Connection connection;
+
+                while ((connection = connections.get(endpoint)) != null && connection.unsent.get() > 0) {
+                    idle.wait();
+                }
+            }
+        }
+
+        local.awaitIdle(local_members);
+    }
+
+    /**
+     * Frames dropped because their recipient is not hosted here or their
+     * sender is unknown.
+     */
+    public long getUndeliverable() {
+        return undeliverable.get();
+    }
+
+    /**
+     * Received frames that could not be decoded or handed to their recipient.
+     * Reading goes on with the next frame.
+     */
+    public long getFailedFrames() {
+        return failedFrames.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+
+        selector.close();
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                Connection connection;
+
+                while ((connection = interest.poll()) != null) {
+                    try {
+                        connection.register();
+                    } catch (IOException e) {
+                        connection.lost();
+                    }
+                }
+
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable())
+                            accept();
+                        else if (key.isConnectable())
+                            ((Connection) key.attachment()).connected(key);
+                        else if (key.isReadable())
+                            ((Inbound) key.attachment()).read(key);
+                        else if (key.isWritable())
+                            ((Connection) key.attachment()).write(key);
+                    } catch (IOException | RuntimeException e) {
+                        key.cancel();
+                        key.channel().close();
+
+                        if (key.attachment() instanceof Connection)
+                            ((Connection) key.attachment()).lost();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closed = true;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Inbound());
+    }
+
+    private void written(Connection connection, int frames) {
+        boolean flushed = connection.unsent.addAndGet(-frames) == 0;
+
+        if (unsent.addAndGet(-frames) == 0 || flushed) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Outgoing connection to one endpoint. Only the selector thread touches
+     * the channel; senders append to the outbound queue.
+     */
+    private final class Connection {
+        private final InetSocketAddress endpoint;
+
+        private final Queue<ByteBuffer> outbound;
+        private final AtomicBoolean flushing;
+
+        /* frames queued and not written or dropped yet */
+        private final AtomicInteger unsent;
+
+        /* set once lost, before the queues are drained */
+        private volatile boolean dead;
+
+        /* selector thread only */
+        private final ArrayDeque<ByteBuffer> writing;
+        private final ByteBuffer[] gather;
+        private SocketChannel channel;
+
+        private Connection(InetSocketAddress endpoint) {
+            this.endpoint = endpoint;
+
+            outbound = new ConcurrentLinkedQueue<>();
+            flushing = new AtomicBoolean();
+            unsent = new AtomicInteger();
+
+            writing = new ArrayDeque<>();
+            gather = new ByteBuffer[MAX_GATHER];
+        }
+
+        private void register() throws IOException {
+            if (channel == null) {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                if (channel.connect(endpoint)) {
+                    channel.register(selector, SelectionKey.OP_WRITE, this);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+
+                return;
+            }
+
+            SelectionKey key = channel.keyFor(selector);
+
+            if (key == null || !key.isValid()) {
+                lost();
+                return;
+            }
+
+            if ((key.interestOps() & SelectionKey.OP_CONNECT) == 0)
+                key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void connected(SelectionKey key) throws IOException {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            while (true) {
+                ByteBuffer frame;
+
+                while (writing.size() < MAX_GATHER && (frame = outbound.poll()) != null) {
+                    writing.add(frame);
+                }
+
+                if (writing.isEmpty()) {
+                    key.interestOps(0);
+                    flushing.set(false);
+
+                    /* a sender that saw the flag still set left its frame for us */
+                    if (outbound.isEmpty() || !flushing.compareAndSet(false, true))
+                        return;
+
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    continue;
+                }
+
+                int count = 0;
+
+                for (ByteBuffer buffer : writing) {
+                    gather[count++] = buffer;
+                }
+
+                channel.write(gather, 0, count);
+
+                int done = 0;
+
+                while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                    buffers.release(writing.pollFirst());
+                    ++done;
+                }
+
+                if (done > 0)
+                    written(this, done);
+
+                if (!writing.isEmpty())
+                    return;
+            }
+        }
+
+        /**
+         * Drops what was queued for a connection that failed, so the next
+         * send opens a new one. A sender that still holds the connection
+         * sees it dead and moves its frame to the new one, or its frame is
+         * dropped here.
+         */
+        private void lost() {
+            connections.remove(endpoint, this);
+            dead = true;
+
+            int dropped = writing.size();
+            ByteBuffer frame;
+
+            while ((frame = writing.poll()) != null) {
+                buffers.release(frame);
+            }
+
+            while ((frame = outbound.poll()) != null) {
+                buffers.release(frame);
+                ++dropped;
+            }
+
+            undeliverable.addAndGet(dropped);
+            written(this, dropped);
+        }
+    }
+
+    /**
+     * Accepted connection frames are read from.
+     */
+    private final class Inbound {
+        private ByteBuffer in;
+
+        private Inbound() {
+            in = buffers.acquire(buffers.getBufferSize());
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            boolean open = false;
+
+            try {
+                if (channel.read(in) < 0) {
+                    key.cancel();
+                    channel.close();
+                    return;
+                }
+
+                in.flip();
+
+                int length;
+
+                while ((length = MessageCodec.frameLength(in)) >= 0) {
+                    if (length < MessageCodec.MIN_FRAME_SIZE || length > MAX_FRAME)
+                        throw new IOException("Bad frame length: " + length);
+
+                    if (length > in.remaining())
+                        break;
+
+                    deliver();
+                }
+
+                if (length > in.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(length);
+                    larger.put(in);
+                    buffers.release(in);
+                    in = larger;
+                } else {
+                    in.compact();
+
+                    /* the large frame is consumed, the rest fits a pooled buffer again */
+                    if (in.capacity() > buffers.getBufferSize() && in.position() <= buffers.getBufferSize()) {
+                        ByteBuffer pooled = buffers.acquire(buffers.getBufferSize());
+                        in.flip();
+                        pooled.put(in);
+                        in = pooled;
+                    }
+                }
+
+                open = true;
+            } finally {
+                /* the connection is done for, at its end or because the selector closes it on the throw */
+                if (!open)
+                    buffers.release(in);
+            }
+        }
+
+        /**
+         * Hands the frame at the position of the buffer to its recipient and
+         * moves past it, also when it fails.
+         */
+        private void deliver() {
+            long id = MessageCodec.recipient(in);
+            AbstractClient recipient = hosted.get(id);
+            Message message;
+
+            try {
+                message = MessageCodec.decode(in, directory);
+            } catch (NoSuchElementException e) {
+                undeliverable.incrementAndGet();
+                return;
+            } catch (RuntimeException e) {
+                failedFrames.incrementAndGet();
+                return;
+            }
+
+            if (recipient == null) {
+                undeliverable.incrementAndGet();
+                return;
+            }
+
+            try {
+                local.send(recipient, message);
+            } catch (RuntimeException e) {
+                failedFrames.incrementAndGet();
+            }
+        }
+    }
+}
@@ -1,71 +1,273 @@
 package participants;
 
+import crypto.GroupParameters;
+import crypto.KeyAgreementEngine;
+import crypto.KeyAgreementEngines;
+import metrics.GroupMetrics;
+import metrics.MetricsRegistry;
+import utils.BlindedTree;
+import utils.BranchLog;
+import utils.BranchUpdate;
 import utils.DHTree;
 import utils.LinkedList;
-import utils.Pair;
-
+import utils.TreeChange;
+import utils.TreeFile;
+import utils.TreeVersion;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Artem on 10.04.2016.
  */
-public class Person implements Client {
-    private DHTree tree;
+public class Person extends AbstractClient {
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /* branches a member keeps for peers that missed them */
+    private static final int BRANCH_LOG_SIZE = 64;
+
+    /* stable for the lifetime of the member, whatever group it is in */
+    private final long id;
+
+    /* replaced on detach; read without the lock by getTreeVersion */
+    private volatile DHTree tree;
 
-    private long p, g;
+    private GroupParameters parameters;
+    private KeyAgreementEngine engine;
 
-    private long public_key;
-    private long secret_key;
+    private BigInteger public_key;
+    private BigInteger secret_key;
 
     private LinkedList<Client> groupClients;
 
+    /* tree changes seen so far, and the branches of the recent ones */
+    private volatile long epoch;
+    private final BranchLog branchLog;
+
+    /* set when this member has to answer a newcomer's branch with its own */
+    private boolean sponsoring;
+    /* the answer comes with fresh keys, for a merge */
+    private boolean refreshing;
+
+    private Disseminator disseminator;
+    private CompletableFuture<DisseminationResult> lastDissemination;
+
+    /* when set, messages go through it instead of the disseminator */
+    private Transport transport;
+
+    /* metrics of the group this member is in */
+    private GroupMetrics metrics;
+
+    /* saved tree to rejoin with after a restart, until rejoin */
+    private TreeFile restored;
+    private MemberDirectory restoredDirectory;
+
     public Person() {
+        this(BigInteger.valueOf(13), BigInteger.valueOf(5));
+    }
+
+    public Person(BigInteger p, BigInteger g) {
+        this(GroupParameters.modp(p, g));
+    }
+
+    /**
+     * Member of a group of its own with the given parameters; the group
+     * keeps them as it grows.
+     */
+    public Person(GroupParameters parameters) {
+        this(nextId.getAndIncrement(), parameters);
+    }
+
+    private Person(long id, GroupParameters parameters) {
+        this.id = id;
+
+        branchLog = new BranchLog(BRANCH_LOG_SIZE);
+
         tree = new DHTree(this);
-        groupClients = new LinkedList<>();
+        groupClients = new LinkedList<>(true);
         groupClients.add(this);
 
-        p = 13;
-        g = 5;
+        setMetrics(MetricsRegistry.getDefault().group(MetricsRegistry.UNGROUPED));
+
+        disseminator = Disseminator.SYNCHRONOUS;
+        lastDissemination = CompletableFuture.completedFuture(
+                new DisseminationResult(0, Collections.<Client, Throwable>emptyMap()));
+
+        setParameters(parameters);
+        resetKeys();
 
-        secret_key = 7;
-        public_key = (long) Math.pow(g, secret_key);
+        /* alone, the member's own key is its group key */
+        tree.publish();
     }
 
     public void joinGroup(HierarchyLevel group) {
-        Person contact = group.sendContactClient();
+        if (group.defer(() -> joinGroup(group)))
+            return;
 
-        Pair<Long, Long> parameters = contact.sendGroupParameters();
-        p = parameters.getFirst();
-        g = parameters.getSecond();
+        if (group.isBatching()) {
+            group.enqueueJoin(this);
+            return;
+        }
 
-        this.groupClients = contact.sendGroupClients();
+        long start = System.nanoTime();
+        Person contact = group.sendContactClient();
 
-        resetKeys();
+        attach(contact);
+        setMetrics(group.getMetrics());
 
         greetGroup();
 
-        groupClients.add(this);
+        synchronized (this) {
+            log(TreeChange.join(epoch + 1, this));
+            group.addClient(this);
 
-        tree.buildTree(groupClients);
-        tree.updateKeys();
+            tree.updateKeys();
 
-        sendUpdatedBranch();
+            sendUpdatedBranch();
+        }
+
+        metrics.joins().increment();
+        metrics.joinLatency().record(System.nanoTime() - start);
+
+        group.refreshParent();
     }
 
     public void leaveGroup(HierarchyLevel group) {
+        if (group.defer(() -> leaveGroup(group)))
+            return;
+
+        if (group.isBatching()) {
+            group.enqueueLeave(this);
+            return;
+        }
+
+        long start = System.nanoTime();
+        GroupMetrics group_metrics = metrics;
+
+        awaitTransport(members());
+
         group.removeClient(this);
         groupClients.remove(this);
 
         sayGoodbye();
 
-        groupClients.clear();
-        tree.clear();
+        detach();
 
-        resetParameters();
-        resetKeys();
+        group_metrics.leaves().increment();
+        group_metrics.leaveLatency().record(System.nanoTime() - start);
+
+        group.refreshParent();
     }
 
 
+    /**
+     * Saves the tree of this member, without secret keys, so that it can
+     * rejoin after a restart with {@link #restore} and {@link #rejoin}.
+     */
+    public synchronized void saveState(Path file) throws IOException {
+        TreeFile.write(file, id, epoch, parameters, tree.getBlindedTree(), Person::idOf);
+    }
+
+    /**
+     * Member with the id and group parameters of a saved tree. Only the
+     * header of the file is read; the tree is decoded on {@link #rejoin}.
+     *
+     * @param directory finds the other members by id
+     */
+    public static Person restore(Path file, MemberDirectory directory) throws IOException {
+        TreeFile saved = TreeFile.open(file);
+        nextId.accumulateAndGet(saved.getOwner() + 1, Math::max);
+
+        Person person = new Person(saved.getOwner(), saved.getParameters());
+        person.restored = saved;
+        person.restoredDirectory = directory;
+
+        return person;
+    }
+
+    /**
+     * Takes the place this member had in the group before a restart. If the
+     * contact is still at the saved epoch and its tree has the saved digest,
+     * the member only picks fresh keys and sends its branch: nobody else
+     * rebuilds or rekeys beyond that path. If the contact moved on but still
+     * logs the changes after the saved epoch, the member replays them on the
+     * saved tree first. Otherwise it takes the contact's tree. Members in
+     * other processes know the member by its id and don't notice the
+     * restart.
+     */
+    public void rejoin(HierarchyLevel group) {
+        if (restored == null)
+            throw new IllegalStateException("Member was not restored from a saved tree");
+
+        if (group.defer(() -> rejoin(group)))
+            return;
+
+        TreeFile saved = restored;
+        MemberDirectory directory = restoredDirectory;
+
+        restored = null;
+        restoredDirectory = null;
+
+        Person contact = group.sendContactClient();
+
+        /* removed from the group while it was down */
+        if (!contact.members().contains(this)) {
+            joinGroup(group);
+            return;
+        }
+
+        long contact_epoch = contact.getEpoch();
+        long saved_epoch = saved.getEpoch();
+        List<TreeChange> missed = null;
+        BlindedTree current;
+        boolean usable;
+
+        if (saved_epoch == contact_epoch)
+            usable = MessageDigest.isEqual(contact.treeDigest(), saved.getDigest());
+        else
+            usable = saved_epoch >= 0 && saved_epoch < contact_epoch
+                    && (missed = contact.branchLog.since(saved_epoch)) != null;
+
+        if (usable)
+            current = saved.getTree(client -> client == id ? this : directory.lookup(client));
+        else
+            current = adopt(contact.sendBlindedTree());
+
+        /* removed since the look at the contact's members */
+        if (current == null) {
+            joinGroup(group);
+            return;
+        }
+
+        group.readmit(this);
+        setMetrics(group.getMetrics());
+
+        synchronized (this) {
+            groupClients = new LinkedList<>(true);
+
+            for (Client client : current.getClients()) {
+                groupClients.add(client);
+            }
+
+            tree.loadTree(current);
+
+            if (missed != null)
+                replay(missed, contact_epoch);
+
+            restartLog(contact_epoch);
+            rekey();
+        }
+
+        group.refreshParent();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -73,91 +275,626 @@ public class Person implements Client {
 
         Person client = (Person) o;
 
-        if (p != client.p) return false;
-        if (g != client.g) return false;
-        if (public_key != client.public_key) return false;
-        if (secret_key != client.secret_key) return false;
-        if (tree != null ? !tree.equals(client.tree) : client.tree != null) return false;
-        return groupClients != null ? groupClients.equals(client.groupClients) : client.groupClients == null;
-
+        return id == client.id;
     }
 
     @Override
     public int hashCode() {
-        int result = tree != null ? tree.hashCode() : 0;
-        result = 31 * result + (int) (p ^ (p >>> 32));
-        result = 31 * result + (int) (g ^ (g >>> 32));
-        result = 31 * result + (int) (public_key ^ (public_key >>> 32));
-        result = 31 * result + (int) (secret_key ^ (secret_key >>> 32));
-        result = 31 * result + (groupClients != null ? groupClients.hashCode() : 0);
-        return result;
+        return (int) (id ^ (id >>> 32));
     }
 
     @Override
     public String toString() {
         return "participants.Person{" +
-                "p=" + p +
-                ", g=" + g +
+                "id=" + id +
+                ", parameters=" + parameters +
                 ", public_key=" + public_key +
                 ", secret_key=" + secret_key +
                 '}';
     }
 
-    protected Pair<Long, Long> sendGroupParameters() {
-        return new Pair<>(p, g);
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Number of the last tree change this member has seen. Every join, leave
+     * and branch update moves the epoch of all members one further, and
+     * branches carry the epoch they belong to.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Brings this member's tree up to date after it missed some changes:
+     * replays the joins, leaves and branches the peer has logged since this
+     * member's epoch, or loads the peer's whole tree if its log no longer
+     * reaches back that far. Nobody else has to do anything.
+     *
+     * @return true if the logged changes were enough
+     */
+    public boolean catchUp(Person peer) {
+        return catchUp(peer, Long.MAX_VALUE);
+    }
+
+    /**
+     * Catches up with the peer's changes up to the epoch; later ones are
+     * still on their way to this member.
+     */
+    private boolean catchUp(Person peer, long until) {
+        List<TreeChange> missed = peer.branchLog.since(epoch);
+
+        if (missed != null) {
+            synchronized (this) {
+                replay(missed, until);
+            }
+
+            return true;
+        }
+
+        long peer_epoch = peer.getEpoch();
+        BlindedTree current = adopt(peer.sendBlindedTree());
+
+        if (current == null)
+            throw new IllegalStateException("Member " + id + " is not in the group of " + peer.id);
+
+        synchronized (this) {
+            groupClients = new LinkedList<>(true);
+
+            for (Client client : current.getClients()) {
+                groupClients.add(client);
+            }
+
+            tree.loadTree(current);
+            tree.updateKeys();
+
+            restartLog(peer_epoch);
+        }
+
+        return false;
+    }
+
+    /**
+     * State of the group tree as of the last rekey. Never blocks, also while
+     * this member handles a join, leave or merge.
+     */
+    public TreeVersion getTreeVersion() {
+        return tree.getVersion();
+    }
+
+    /**
+     * Group key as of the last rekey, or null if there is none yet. Never
+     * blocks, see {@link #getTreeVersion()}.
+     */
+    public BigInteger getGroupKey() {
+        return tree.getVersion().getGroupKey();
+    }
+
+    /**
+     * Chooses how this member delivers its greet, goodbye and branch messages.
+     */
+    public void setDisseminator(Disseminator disseminator) {
+        this.disseminator = disseminator;
+    }
+
+    /**
+     * Sends greet, goodbye and branch messages through a transport instead
+     * of calling members directly, or through the disseminator again if
+     * null. Sending then returns without waiting for any member; members
+     * handle messages in the order each sender sent them. Joining and
+     * leaving first wait until the transport is idle, so they start from
+     * the tree the previous membership event left behind.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Completion of the last branch update this member sent. Greet and
+     * goodbye are always complete when joinGroup or leaveGroup returns.
+     */
+    public CompletableFuture<DisseminationResult> getLastDissemination() {
+        return lastDissemination;
+    }
+
+    protected GroupParameters sendGroupParameters() {
+        return parameters;
     }
 
     protected LinkedList<Client> sendGroupClients() {
         return this.groupClients;
     }
 
-    protected void addClient(Client client) {
+    protected synchronized TreeSnapshot sendTreeSnapshot() {
+        return new TreeSnapshot(parameters, tree.getBlindedTree(), epoch);
+    }
+
+    /**
+     * Takes over the contact's tree with fresh keys. A newcomer adds its own
+     * leaf where the members will add it on its greet; a member the group
+     * has already admitted finds its leaf in place.
+     */
+    protected synchronized void acceptTreeSnapshot(TreeSnapshot snapshot) {
+        setParameters(snapshot.getParameters());
+
+        groupClients = new LinkedList<>(true);
+
+        for (Client client : snapshot.getMembers()) {
+            groupClients.add(client);
+        }
+
+        restartLog(snapshot.getEpoch());
+        resetKeys();
+
+        BlindedTree current = adopt(snapshot.getTree());
+
+        if (current != null) {
+            tree.loadTree(current);
+        } else {
+            groupClients.add(this);
+            tree.joinTree(snapshot.getTree());
+        }
+    }
+
+    protected synchronized void addClient(Client client) {
         groupClients.add(client);
-        tree.addClient(client);
+        log(TreeChange.join(epoch + 1, client));
+
+        if (tree.addClient(client) == this)
+            sponsoring = true;
     }
 
     protected void greetGroup() {
-        for (Client client : groupClients) {
-            client.addClient(this);
+        List<Client> recipients = recipients(null);
+        metrics.messagesSent().add(recipients.size());
+
+        if (transport != null) {
+            post(recipients, Message.greet(this));
+            return;
         }
+
+        disseminator.send(recipients, client -> client.addClient(this)).join();
     }
 
     protected void sendUpdatedBranch() {
-        List<Pair<Pair<Integer, Integer>, Long>> branchInfo = tree.getHostingBranch();
+        BranchUpdate branchInfo = tree.getHostingBranch();
+        List<Client> recipients = recipients(null);
 
-        for (Client client : groupClients) {
-            if (client != this)
-                client.updateKeys(branchInfo);
+        branchInfo.setEpoch(epoch + 1);
+        observe(branchInfo);
+
+        metrics.branchLength().record(branchInfo.size());
+        metrics.messagesSent().add(recipients.size());
+
+        if (transport != null) {
+            post(recipients, Message.branchUpdate(this, branchInfo));
+            return;
         }
+
+        lastDissemination = disseminator.send(recipients, client -> client.updateKeys(this, branchInfo));
     }
 
-    protected void updateKeys(List<Pair<Pair<Integer, Integer>, Long>> changedBranch) {
+    @Override
+    protected void updateKeys(Client sender, BranchUpdate changedBranch) {
+        /* the sender has every branch up to this one */
+        if (changedBranch.getEpoch() > epoch + 1 && sender instanceof Person) {
+            Person peer = (Person) sender;
+
+            /* the sender already saw this member leave */
+            if (!peer.isMember(this)) {
+                metrics.staleMessages().increment();
+                return;
+            }
+
+            catchUp(peer, changedBranch.getEpoch() - 1);
+        }
+
+        updateKeys(changedBranch);
+    }
+
+    protected synchronized void updateKeys(BranchUpdate changedBranch) {
+        if (sponsoring && refreshing) {
+            refreshing = false;
+            resetKeys();
+        }
+
         tree.updateKeys(changedBranch);
+        observe(changedBranch);
+
+        if (sponsoring) {
+            sponsoring = false;
+            sendUpdatedBranch();
+        }
     }
 
     protected void sayGoodbye() {
-        for (Client client : groupClients) {
-            client.removeClient(this);
+        /* the sponsor rekeys as soon as it hears about the leave, so it goes last */
+        Client sponsor = groupClients.isEmpty() ? null : tree.findSponsor(this);
+        metrics.messagesSent().add(groupClients.size());
+
+        if (transport != null) {
+            /* the sponsor's rekey lands behind the goodbye in every other queue */
+            post(recipients(sponsor), Message.goodbye(this));
+
+            if (sponsor != null)
+                transport.send(sponsor, Message.goodbye(this));
+
+            return;
         }
+
+        disseminator.send(recipients(sponsor), client -> client.removeClient(this)).join();
+
+        if (sponsor != null)
+            disseminator.send(Collections.singletonList(sponsor), client -> client.removeClient(this)).join();
     }
 
-    protected void removeClient(Client client) {
+    protected synchronized void removeClient(Client client) {
+        long start = System.nanoTime();
+
         Client sponsor = tree.removeClient(client);
         groupClients.remove(client);
+        log(TreeChange.leave(epoch + 1, client));
 
-        if (sponsor.equals(this)) {
-            tree.updateKeys();
-            sendUpdatedBranch();
+        if (sponsor == this)
+            rekey();
+
+        metrics.removeLatency().record(System.nanoTime() - start);
+    }
+
+    @Override
+    protected synchronized void receive(List<Message> messages) {
+        super.receive(messages);
+    }
+
+    /**
+     * Drops messages that were sent before this member left, or before their
+     * sender did: there is no tree left to apply them to.
+     */
+    @Override
+    protected synchronized void receive(Message message) {
+        boolean stale;
+
+        switch (message.getType()) {
+            case GREET:
+                /* a member that caught up may have replayed the join already */
+                stale = !groupClients.contains(this) || groupClients.contains(message.getSender());
+                break;
+            case GOODBYE:
+            case BRANCH_UPDATE:
+                stale = !groupClients.contains(this) || !groupClients.contains(message.getSender());
+                break;
+            default:
+                stale = false;
+        }
+
+        if (stale) {
+            metrics.staleMessages().increment();
+            return;
         }
+
+        super.receive(message);
     }
 
     protected void resetParameters() {
-        p = 11;
-        g = 3;
+        setParameters(GroupParameters.modp(BigInteger.valueOf(11), BigInteger.valueOf(3)));
+    }
+
+    /**
+     * Secret key for the next {@link #resetKeys()}, a random one.
+     */
+    protected BigInteger newSecretKey() {
+        return engine.generateSecret();
+    }
+
+    protected synchronized void resetKeys() {
+        secret_key = newSecretKey();
+        public_key = engine.blind(secret_key);
+        metrics.exponentiations().increment();
+
+        tree.setOwnerKeys(secret_key, public_key);
+    }
+
+    /**
+     * Takes group parameters and the blinded tree from a contact, and picks
+     * fresh keys for them.
+     */
+    void attach(Person contact) {
+        contact.awaitTransport(contact.members());
+        acceptTreeSnapshot(contact.sendTreeSnapshot());
     }
 
-    protected void resetKeys() {
-        secret_key = 7;
-        public_key = (long) Math.pow(g, secret_key);
+    /**
+     * Leaves the group behind and goes on as a group of its own. The group's
+     * engine is released first, whatever resetParameters does, so the
+     * fixed-base table of the group goes once no member in the process
+     * uses it any more.
+     */
+    synchronized void detach() {
+        releaseEngine();
+
+        groupClients.clear();
+        tree.clear();
+
+        tree = new DHTree(this, tree.getVersion().getVersion());
+        sponsoring = false;
+        refreshing = false;
+
+        setMetrics(MetricsRegistry.getDefault().group(MetricsRegistry.UNGROUPED));
+
+        resetParameters();
+
+        /* parameters kept across the leave need an engine of their own again */
+        if (engine == null)
+            setParameters(parameters);
+
+        resetKeys();
+
+        tree.publish();
+    }
+
+    /**
+     * Adds a member without taking part in the join protocol, used when
+     * the group applies a batch of membership events itself.
+     */
+    synchronized void admit(Person client) {
+        groupClients.add(client);
+        tree.addClient(client);
+    }
+
+    /**
+     * Replaces the member list and builds a balanced tree over it in one
+     * pass, without rekeying. Used when the group takes in at least as many
+     * members at once as it has; every member builds from the same list.
+     */
+    synchronized void rebuild(LinkedList<? extends Client> members) {
+        groupClients = new LinkedList<>(true);
+
+        for (Client client : members) {
+            groupClients.add(client);
+        }
+
+        tree.buildTree(groupClients);
+    }
+
+    /**
+     * Removes members without rekeying.
+     *
+     * @return true if this member sponsors at least one of the leaves
+     */
+    synchronized boolean dismiss(List<Person> clients) {
+        List<Client> present = new ArrayList<>(clients.size());
+
+        for (Person client : clients) {
+            if (groupClients.contains(client)) {
+                present.add(client);
+                groupClients.remove(client);
+            }
+        }
+
+        if (present.isEmpty())
+            return false;
+
+        return tree.removeClients(present).contains(this);
+    }
+
+    /**
+     * Snapshot of the member list, this member included.
+     */
+    synchronized List<Client> members() {
+        List<Client> members = new ArrayList<>(groupClients.size());
+
+        for (Client client : groupClients) {
+            members.add(client);
+        }
+
+        return members;
+    }
+
+    synchronized boolean isMember(Client client) {
+        return groupClients.contains(client);
+    }
+
+    synchronized BlindedTree sendBlindedTree() {
+        return tree.getBlindedTree();
+    }
+
+    /**
+     * Merges the tree of another group into own tree and takes its members.
+     * The sponsor on the hosting side answers the branch of the other side's
+     * sponsor with fresh keys of its own.
+     *
+     * @return true if this member sponsors the merge on its side
+     */
+    synchronized boolean mergeGroup(BlindedTree another_tree, boolean hosting) {
+        for (Client client : another_tree.getClients()) {
+            groupClients.add(client);
+        }
+
+        boolean sponsor = tree.merge(another_tree, hosting) == this;
+
+        if (sponsor && hosting) {
+            sponsoring = true;
+            refreshing = true;
+        }
+
+        return sponsor;
+    }
+
+    /**
+     * Picks fresh keys, recomputes own path and sends it.
+     */
+    synchronized void rekey() {
+        resetKeys();
+        tree.updateKeys();
+        sendUpdatedBranch();
+    }
+
+    /**
+     * Starts the branch log over at the epoch, after a change of the tree's
+     * shape that logged branches can't be replayed across.
+     */
+    synchronized void restartLog(long epoch) {
+        this.epoch = epoch;
+        branchLog.reset(epoch);
+    }
+
+    synchronized byte[] treeDigest() {
+        return TreeFile.digest(tree.getBlindedTree(), Person::idOf);
+    }
+
+    void setMetrics(GroupMetrics metrics) {
+        this.metrics = metrics;
+        tree.setMetrics(metrics);
+    }
+
+    synchronized int rebalanceTree() {
+        return tree.rebalance();
+    }
+
+    /**
+     * Levels the own tree has beyond the lowest height possible.
+     */
+    synchronized int treeSlack() {
+        return tree.getHeight() - tree.getBalancedHeight();
+    }
+
+    synchronized int recomputeKeys() {
+        return tree.updateKeys();
+    }
+
+    synchronized BranchUpdate takeRecomputedBranch() {
+        return tree.getRecomputedBranch();
+    }
+
+    synchronized void applyBranch(BranchUpdate changedBranch) {
+        tree.updateKeys(changedBranch);
+    }
+
+    /**
+     * Snapshot of the other members, so deliveries don't race with changes
+     * of the member list.
+     */
+    private List<Client> recipients(Client except) {
+        List<Client> recipients = new ArrayList<>(groupClients.size());
+
+        for (Client client : groupClients) {
+            if (client != this && client != except)
+                recipients.add(client);
+        }
+
+        return recipients;
+    }
+
+    /**
+     * The tree with this member in place of its earlier incarnation, or null
+     * if the tree has none.
+     */
+    private BlindedTree adopt(BlindedTree blinded) {
+        Client[] clients = new Client[blinded.size()];
+        BigInteger[] keys = new BigInteger[blinded.size()];
+        boolean found = false;
+
+        for (int i = 0; i < clients.length; ++i) {
+            Client client = blinded.getClient(i);
+
+            if (equals(client)) {
+                client = this;
+                found = true;
+            }
+
+            clients[i] = client;
+            keys[i] = blinded.getKey(i);
+        }
+
+        return found ? new BlindedTree(clients, keys) : null;
+    }
+
+    private void observe(BranchUpdate branch) {
+        log(TreeChange.branch(branch));
+    }
+
+    private void log(TreeChange change) {
+        epoch = Math.max(epoch, change.getEpoch());
+        branchLog.add(change);
+    }
+
+    /**
+     * Applies a peer's logged changes up to the epoch, skipping joins and
+     * leaves this member has seen already. Replaying does not sponsor
+     * anything: the sponsors did that when the changes happened.
+     */
+    private void replay(List<TreeChange> changes, long until) {
+        for (TreeChange change : changes) {
+            if (change.getEpoch() > until)
+                break;
+
+            Client client = change.getClient();
+
+            switch (change.getType()) {
+                case JOIN:
+                    if (!groupClients.contains(client)) {
+                        groupClients.add(client);
+                        tree.addClient(client);
+                    }
+                    break;
+                case LEAVE:
+                    if (groupClients.contains(client)) {
+                        groupClients.remove(client);
+                        tree.removeClient(client);
+                    }
+                    break;
+                default:
+                    tree.updateKeys(change.getBranch());
+                    break;
+            }
+
+            log(change);
+        }
+    }
+
+    private static long idOf(Client client) {
+        return ((AbstractClient) client).getId();
+    }
+
+    /**
+     * Waits until the members have handled the messages of earlier
+     * membership events of their group.
+     */
+    private void awaitTransport(List<Client> members) {
+        Transport current = transport;
+
+        if (current == null)
+            return;
+
+        try {
+            current.awaitIdle(members);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the transport", e);
+        }
+    }
+
+    private void post(List<Client> recipients, Message message) {
+        for (Client recipient : recipients) {
+            transport.send(recipient, message);
+        }
+    }
+
+    private void setParameters(GroupParameters parameters) {
+        this.parameters = parameters;
+
+        releaseEngine();
+
+        engine = KeyAgreementEngines.create(parameters);
+        tree.setEngine(engine);
+    }
+
+    private void releaseEngine() {
+        if (engine != null) {
+            engine.release();
+            engine = null;
+        }
     }
 }
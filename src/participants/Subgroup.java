@@ -0,0 +1,66 @@
+package participants;
+
+import java.math.BigInteger;
+
+/**
+ * Member of a parent level that stands for a whole nested level. Its secret
+ * key is the group key of the nested level, which every member there knows,
+ * so the nested level is a single leaf of the parent tree. Joins and leaves
+ * inside the nested level change only that leaf's key: the parent level
+ * recomputes the path above it and nothing else.
+ */
+public class Subgroup extends Person {
+    private final HierarchyLevel level;
+
+    /* group key of the level the leaf keys were last taken from */
+    private BigInteger leafKey;
+
+    Subgroup(HierarchyLevel level) {
+        this.level = level;
+    }
+
+    public HierarchyLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Group key of the nested level, or a random key while it has none.
+     */
+    @Override
+    protected BigInteger newSecretKey() {
+        /* the constructor of Person picks keys before level is set */
+        BigInteger key = level != null ? level.getGroupKey() : null;
+
+        if (key == null)
+            return super.newSecretKey();
+
+        leafKey = key;
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "Subgroup{" +
+                "level=" + level.getName() +
+                ", id=" + getId() +
+                '}';
+    }
+
+    /**
+     * Takes a new group key of the nested level into the parent tree and
+     * passes the new parent key on upwards.
+     */
+    void refresh() {
+        BigInteger key = level.getGroupKey();
+
+        if (key == null || key.equals(leafKey))
+            return;
+
+        rekey();
+
+        HierarchyLevel parent = level.getParent();
+
+        if (parent != null)
+            parent.refreshParent();
+    }
+}
@@ -0,0 +1,28 @@
+package participants;
+
+import java.util.Collection;
+
+/**
+ * Carries protocol messages between members. Sending must not wait for the
+ * recipient to handle the message, and messages from one sender to one
+ * recipient must be handled in the order they were sent.
+ *
+ * Messages of different senders are not ordered, so a membership event must
+ * not start before every message of the previous event in the same group
+ * is handled: a joiner copies its contact's tree directly, and would miss a
+ * goodbye or branch still queued for the contact. Members therefore wait
+ * for {@link #awaitIdle(Collection)} on the members of their group before
+ * they join or leave. Other groups are not waited for.
+ */
+public interface Transport {
+    void send(Client recipient, Message message);
+
+    /**
+     * Blocks until every message sent so far to the members has been
+     * handled, including messages they send one another while handling
+     * theirs. A transport that hands messages over before send returns has
+     * nothing to wait for.
+     */
+    default void awaitIdle(Collection<? extends Client> members) throws InterruptedException {
+    }
+}
@@ -0,0 +1,66 @@
+package participants;
+
+import crypto.GroupParameters;
+import utils.BlindedTree;
+
+import java.util.List;
+
+/**
+ * What a newcomer takes from its contact to join: the group parameters, the
+ * shape and blinded keys of the contact's tree and the epoch of that tree.
+ * With the blinded keys of its co-path at hand, the newcomer only computes
+ * the path above its own leaf.
+ */
+public final class TreeSnapshot {
+    private final GroupParameters parameters;
+    private final BlindedTree tree;
+    private final List<Client> members;
+    private final long epoch;
+
+    public TreeSnapshot(GroupParameters parameters, BlindedTree tree) {
+        this(parameters, tree, 0);
+    }
+
+    public TreeSnapshot(GroupParameters parameters, BlindedTree tree, long epoch) {
+        if (parameters == null)
+            throw new NullPointerException("Snapshot needs group parameters");
+
+        if (tree == null)
+            throw new NullPointerException("Snapshot needs a tree");
+
+        this.parameters = parameters;
+        this.tree = tree;
+        this.epoch = epoch;
+
+        members = tree.getClients();
+    }
+
+    public GroupParameters getParameters() {
+        return parameters;
+    }
+
+    public BlindedTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Members at the leaves of the tree, from left to right.
+     */
+    public List<Client> getMembers() {
+        return members;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String toString() {
+        return "participants.TreeSnapshot{" +
+                "parameters=" + parameters +
+                ", members=" + members.size() +
+                ", nodes=" + tree.size() +
+                ", epoch=" + epoch +
+                '}';
+    }
+}
@@ -0,0 +1,107 @@
+package utils;
+
+import participants.Client;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shape and blinded keys of a DHTree, without any secret key. Nodes are
+ * listed in pre-order; a node with a client is a leaf, any other node is
+ * followed by its left and then its right subtree. A key is null where the
+ * tree it was taken from had no up to date one.
+ */
+public final class BlindedTree {
+    private final Client[] clients;
+    private final BigInteger[] keys;
+    private final int height;
+
+    public BlindedTree(Client[] clients, BigInteger[] keys) {
+        if (clients.length != keys.length)
+            throw new IllegalArgumentException("Every node needs a client slot and a key slot");
+
+        if (clients.length == 0)
+            throw new IllegalArgumentException("Tree has no nodes");
+
+        this.clients = clients.clone();
+        this.keys = keys.clone();
+
+        height = measure();
+    }
+
+    public int size() {
+        return clients.length;
+    }
+
+    /**
+     * Number of levels, as in the tree it was taken from.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Client of the i-th node, null for inner nodes.
+     */
+    public Client getClient(int i) {
+        return clients[i];
+    }
+
+    public BigInteger getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Clients of all leaves from left to right.
+     */
+    public List<Client> getClients() {
+        List<Client> leaves = new ArrayList<>();
+
+        for (Client client : clients) {
+            if (client != null)
+                leaves.add(client);
+        }
+
+        return Collections.unmodifiableList(leaves);
+    }
+
+    /**
+     * Checks the pre-order is a full binary tree and finds its height.
+     */
+    private int measure() {
+        /* depth of the nodes still expected, innermost last */
+        int[] pending = new int[clients.length + 1];
+        int top = 0;
+        int deepest = 0;
+
+        pending[top++] = 0;
+
+        for (Client client : clients) {
+            if (top == 0)
+                throw new IllegalArgumentException("Nodes after the end of the tree");
+
+            int depth = pending[--top];
+            deepest = Math.max(deepest, depth);
+
+            if (client == null) {
+                pending[top++] = depth + 1;
+                pending[top++] = depth + 1;
+            }
+        }
+
+        if (top != 0)
+            throw new IllegalArgumentException("Tree ends before all inner nodes have children");
+
+        return deepest + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.BlindedTree{" +
+                "nodes=" + clients.length +
+                ", height=" + height +
+                '}';
+    }
+}
@@ -0,0 +1,92 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded log of the last changes of a member's tree, with their epochs:
+ * the branches it sent or applied and the members that joined or left. A
+ * member that missed some can take the ones after its own epoch from a
+ * peer's log and replay them, as long as the log still reaches back that
+ * far: once it is full the oldest change makes room, and a change the log
+ * can't express, like a batch or a merge, starts it over.
+ */
+public final class BranchLog {
+    private final TreeChange[] entries;
+    private int first;
+    private int count;
+
+    /* every branch after this epoch is in the log */
+    private long horizon;
+
+    public BranchLog(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Log size must be positive: " + capacity);
+
+        entries = new TreeChange[capacity];
+    }
+
+    /**
+     * Empties the log; it reaches back to the epoch from now on.
+     */
+    public synchronized void reset(long epoch) {
+        for (int i = 0; i < count; ++i) {
+            entries[(first + i) % entries.length] = null;
+        }
+
+        first = 0;
+        count = 0;
+        horizon = epoch;
+    }
+
+    /**
+     * Appends the branch, which must not change afterwards.
+     */
+    public void add(BranchUpdate branch) {
+        add(TreeChange.branch(branch));
+    }
+
+    /**
+     * Appends the change. Changes from before the horizon are of no use to
+     * anybody and are not kept.
+     */
+    public synchronized void add(TreeChange change) {
+        if (change.getEpoch() <= horizon)
+            return;
+
+        if (count == entries.length) {
+            horizon = Math.max(horizon, entries[first].getEpoch());
+            entries[first] = null;
+
+            first = (first + 1) % entries.length;
+            --count;
+        }
+
+        entries[(first + count) % entries.length] = change;
+        ++count;
+    }
+
+    /**
+     * Changes after the epoch in the order they were added, or null if some
+     * of them are not in the log anymore.
+     */
+    public synchronized List<TreeChange> since(long epoch) {
+        if (epoch < horizon)
+            return null;
+
+        List<TreeChange> changes = new ArrayList<>();
+
+        for (int i = 0; i < count; ++i) {
+            TreeChange change = entries[(first + i) % entries.length];
+
+            if (change.getEpoch() > epoch)
+                changes.add(change);
+        }
+
+        return changes;
+    }
+
+    public synchronized long getHorizon() {
+        return horizon;
+    }
+}
@@ -0,0 +1,159 @@
+package utils;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Blinded keys of a tree branch as (level, index, key) triples kept in
+ * parallel arrays. Filling an update costs no allocation per node, and an
+ * update can be cleared and refilled.
+ */
+public class BranchUpdate {
+    private int[] levels;
+    private int[] indices;
+    private BigInteger[] keys;
+
+    private int size;
+
+    /* tree change the branch belongs to, see Person#getEpoch */
+    private long epoch;
+
+    public BranchUpdate() {
+        this(8);
+    }
+
+    public BranchUpdate(int capacity) {
+        capacity = Math.max(capacity, 1);
+
+        levels = new int[capacity];
+        indices = new int[capacity];
+        keys = new BigInteger[capacity];
+
+        size = 0;
+    }
+
+    public static BranchUpdate fromPairs(List<Pair<Pair<Integer, Integer>, BigInteger>> branch) {
+        BranchUpdate update = new BranchUpdate(branch.size());
+
+        for (Pair<Pair<Integer, Integer>, BigInteger> entry : branch) {
+            update.add(entry.getFirst().getFirst(), entry.getFirst().getSecond(), entry.getSecond());
+        }
+
+        return update;
+    }
+
+    public List<Pair<Pair<Integer, Integer>, BigInteger>> toPairs() {
+        List<Pair<Pair<Integer, Integer>, BigInteger>> branch = new ArrayList<>(size);
+
+        for (int i = 0; i < size; ++i) {
+            branch.add(new Pair<>(new Pair<>(levels[i], indices[i]), keys[i]));
+        }
+
+        return branch;
+    }
+
+    public void add(int level, int index, BigInteger key) {
+        if (size == levels.length) {
+            int capacity = levels.length * 2;
+
+            levels = Arrays.copyOf(levels, capacity);
+            indices = Arrays.copyOf(indices, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+
+        levels[size] = level;
+        indices[size] = index;
+        keys[size] = key;
+
+        ++size;
+    }
+
+    public int getLevel(int i) {
+        checkIndex(i);
+        return levels[i];
+    }
+
+    public int getIndex(int i) {
+        checkIndex(i);
+        return indices[i];
+    }
+
+    public BigInteger getKey(int i) {
+        checkIndex(i);
+        return keys[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Stamps the branch with the epoch of the tree change it belongs to. Two
+     * branches with the same keys are equal whatever their epochs.
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BranchUpdate)) return false;
+
+        BranchUpdate that = (BranchUpdate) o;
+
+        if (size != that.size) return false;
+
+        for (int i = 0; i < size; ++i) {
+            if (levels[i] != that.levels[i] || indices[i] != that.indices[i]) return false;
+            if (!keys[i].equals(that.keys[i])) return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = size;
+
+        for (int i = 0; i < size; ++i) {
+            result = 31 * result + levels[i];
+            result = 31 * result + indices[i];
+            result = 31 * result + keys[i].hashCode();
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < size; ++i) {
+            text.append("((").append(levels[i]).append(", ").append(indices[i]).append("), ");
+            text.append(keys[i]).append(") ");
+        }
+
+        return text.toString();
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException();
+    }
+}
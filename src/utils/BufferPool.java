@@ -0,0 +1,63 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers of one size, reused instead of allocated per message.
+ * Larger requests get a buffer of their own that is not pooled.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> free;
+    private final AtomicInteger pooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+
+        free = new ConcurrentLinkedQueue<>();
+        pooled = new AtomicInteger();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Cleared buffer with room for at least size bytes.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize)
+            return ByteBuffer.allocateDirect(size);
+
+        ByteBuffer buffer = free.poll();
+
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        pooled.decrementAndGet();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect())
+            return;
+
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        free.offer(buffer);
+    }
+}
@@ -1,346 +1,1198 @@
 package utils;
 
+import crypto.KeyAgreementEngine;
+import metrics.GroupMetrics;
+import metrics.MetricsRegistry;
 import participants.Client;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by Artem on 10.04.2016.
+ *
+ * Nodes are ids into parallel arrays rather than objects: a node costs a
+ * handful of array slots, and walking a path touches a few dense arrays.
+ * Node (level, index) is its position in a complete binary tree: the children
+ * of (l, i) are (l + 1, 2i) and (l + 1, 2i + 1).
+ *
+ * The tree itself is for one thread at a time. Other threads read the
+ * {@link TreeVersion} it publishes after every rekey.
  */
 public class DHTree {
-    private class DHNode {
-        int level;
-        int index;
+    private static final int NONE = -1;
 
-        DHNode left, right, parent;
+    /* keys of the node are stale and have to be recomputed or received */
+    private static final byte DIRTY = 1;
+    /* keys of the node were computed here and have not been sent yet */
+    private static final byte UNPUBLISHED = 2;
 
-        private Client client;
+    /* keys or children of the node changed since the last published version */
+    private static final byte STALE = 64;
 
-        private long secret_key;
-        private long public_key;
+    /* marks a subtree rebalance keeps as it is */
+    private static final byte KEPT = 32;
 
-        public DHNode() {
-            level = -1;
-            index = -1;
+    /* marks used by removeClients only, cleared before it returns */
+    private static final byte PRUNED = 4;
+    private static final byte CHANGED = 8;
+    private static final byte PROMOTED = 16;
 
-            left = null;
-            right = null;
-            parent = null;
+    private int[] parent;
+    private int[] left;
+    private int[] right;
+    private int[] level;
+    private int[] index;
+    private byte[] flags;
 
-            client = null;
+    /* leaves, levels, and depth of the shallowest leaf of every subtree */
+    private int[] leafCount;
+    private int[] subtreeHeight;
+    private int[] shallowest;
 
-            secret_key = -1;
-            public_key = -1;
-        }
+    private Client[] client;
+    private BigInteger[] secret_key;
+    private BigInteger[] public_key;
 
-        public boolean isLeaf() {
-            if (left == null && right == null) {
-                if (client != null)
-                    return true;
-                else
-                    throw new NullPointerException("Leaf with no participants.Person owner");
-            }
+    /* node of every node in the last published version */
+    private TreeVersion.Node[] versionNode;
 
-            return false;
-        }
-    }
+    /* ids below used have been allocated, freed ones are chained through parent */
+    private int used;
+    private int free;
 
-    private DHNode root;
+    /* number of nodes on every level */
+    private int[] levelSizes;
+    private int height;
+
+    private int root;
 
     private Client owner;
-    private DHNode ownerLeaf;
+    private int ownerLeaf;
+
+    /* leaf of every client, by identity */
+    private Map<Client, Integer> leaves;
+
+    private KeyAgreementEngine engine;
+    private BigInteger owner_secret_key;
+    private BigInteger owner_public_key;
+
+    private GroupMetrics metrics;
 
-    private List<LinkedList<DHNode>> levels;
+    private final AtomicReference<TreeVersion> published;
+
+    /* scratch queue for breadth-first searches */
+    private int[] queue;
 
     public DHTree(Client owner) {
+        this(owner, 0);
+    }
+
+    /**
+     * Tree whose versions are numbered after the given one, so that an owner
+     * that replaces its tree keeps its version numbers increasing.
+     */
+    public DHTree(Client owner, long version) {
         this.owner = owner;
+        metrics = MetricsRegistry.getDefault().group(MetricsRegistry.UNGROUPED);
+        published = new AtomicReference<>(new TreeVersion(version, null, null, 0, 0));
 
-        root = new DHNode();
-        root.level = 0;
-        root.index = 0;
-        root.client = owner;
-        ownerLeaf = root;
+        allocate(4);
+        leaves = new IdentityHashMap<>();
 
-        levels = new ArrayList<>();
-        levels.add(new LinkedList<>());
-        levels.get(0).add(root);
+        root = newLeaf(owner);
+        place(root, 0, 0);
+        ownerLeaf = root;
     }
 
+    /**
+     * Replaces the tree with a balanced one over the clients in list order,
+     * the tree a rebalance would make of them: every inner node has the
+     * larger half of its leaves on the left. Members that build from the
+     * same list get the same tree. All nodes are made in one pass, so the
+     * cost is linear in the number of clients.
+     */
     public void buildTree(LinkedList<Client> clients) {
-        root = null;
-        levels.clear();
+        if (clients.isEmpty())
+            throw new IllegalArgumentException("Tree needs at least one client");
+
+        reset();
+        reserve(2 * clients.size() - 1);
+
+        int[] order = new int[clients.size()];
+        int count = 0;
 
         for (Client client : clients) {
-            addClient(client);
+            order[count++] = newLeaf(client);
         }
 
+        root = rebuild(order, 0, count - 1, new int[1]);
+        place(root, 0, 0);
+
+        ownerLeaf = findClientLeaf(owner);
+        secret_key[ownerLeaf] = owner_secret_key;
+        public_key[ownerLeaf] = owner_public_key;
+        flags[ownerLeaf] |= UNPUBLISHED;
+    }
+
+    /**
+     * Replaces the tree with the shape and blinded keys of another member's
+     * tree, which has to contain the owner. The owner leaf takes the owner
+     * keys, and the path above it is marked for recomputation.
+     */
+    public void loadTree(BlindedTree tree) {
+        if (!tree.getClients().contains(owner))
+            throw new IllegalArgumentException("Tree does not contain its owner " + owner);
+
+        reset();
+
+        root = importTree(tree);
+        place(root, 0, 0);
+
         ownerLeaf = findClientLeaf(owner);
+        setOwnerKeys(owner_secret_key, owner_public_key);
     }
 
-    public void addClient(Client client) {
-        DHTree client_tree = new DHTree(client);
-        this.merge(client_tree);
+    /**
+     * Replaces the tree with the shape and blinded keys of the tree of a
+     * group the owner is joining, and adds the owner's leaf where every
+     * member adds it on the owner's greet. The co-path of the new leaf comes
+     * with its blinded keys, so only the path above it is left to compute.
+     *
+     * @return the sponsor of the join
+     */
+    public Client joinTree(BlindedTree tree) {
+        if (tree.getClients().contains(owner))
+            throw new IllegalArgumentException("Tree already contains its owner " + owner);
+
+        reset();
+
+        root = importTree(tree);
+        place(root, 0, 0);
+
+        Client sponsor = addClient(owner);
+
+        ownerLeaf = findClientLeaf(owner);
+        setOwnerKeys(owner_secret_key, owner_public_key);
+
+        return sponsor;
     }
 
+    /**
+     * Adds a leaf for the client and returns the sponsor of the join: the
+     * member that has to recompute and broadcast the keys above the new leaf.
+     */
+    public Client addClient(Client client) {
+        if (leaves.containsKey(client))
+            throw new IllegalArgumentException("Tree already contains client " + client);
+
+        int leaf = newLeaf(client);
+
+        if (root == NONE) {
+            root = leaf;
+            place(root, 0, 0);
+            return null;
+        }
+
+        int insertion_node = findInsertionNode(1);
+        graft(insertion_node, leaf);
+
+        return this.client[rightmostLeaf(insertion_node)];
+    }
+
+    /**
+     * Returns the member that would sponsor the client's leave, without
+     * removing the client.
+     */
+    public Client findSponsor(Client client) {
+        int leavingNode = findClientLeaf(client);
+
+        if (leavingNode == root)
+            return null;
+
+        return this.client[rightmostLeaf(sibling(leavingNode))];
+    }
+
+    /**
+     * Removes the client's leaf and returns the sponsor of the leave.
+     */
     public Client removeClient(Client client) {
-        DHNode leavingNode = findClientLeaf(client);
-        DHNode parent = leavingNode.parent;
-        DHNode sibling = (leavingNode == parent.left) ? parent.right : parent.left;
+        int leavingNode = findClientLeaf(client);
+
+        if (leavingNode == root)
+            throw new IllegalStateException("Can't remove the only client of the tree");
+
+        int parent = this.parent[leavingNode];
+        int sibling = sibling(leavingNode);
+        int grandparent = this.parent[parent];
+
+        int parent_level = level[parent];
+        int parent_index = index[parent];
 
-        if (sibling.client == null) {
-            throw new NullPointerException("Leaf with no client");
+        unplace(parent);
+
+        this.parent[sibling] = grandparent;
+        replaceChild(grandparent, parent, sibling);
+        measureUp(grandparent);
+
+        place(sibling, parent_level, parent_index);
+
+        leaves.remove(client);
+        freeNode(leavingNode);
+        freeNode(parent);
+
+        markDirty(grandparent);
+
+        return this.client[rightmostLeaf(sibling)];
+    }
+
+    /**
+     * Removes the leaves of all the clients in one pass. Only the part of the
+     * tree above leavers is walked, each remaining node is renumbered at most
+     * once, and every ancestor whose subtree changed is marked for
+     * recomputation once.
+     *
+     * @return sponsors of the leave from left to right: one under every
+     * lowest changed node, so that each changed node has a sponsor below it
+     */
+    public List<Client> removeClients(Collection<? extends Client> clients) {
+        Set<Client> leaving = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Client client : clients) {
+            if (client == owner)
+                throw new IllegalArgumentException("Can't remove the owner of the tree");
+
+            findClientLeaf(client);
+            leaving.add(client);
         }
 
-        leavingNode.level = -1;
-        parent.level = -1;
+        if (leaving.isEmpty())
+            return Collections.emptyList();
 
-        if (parent == root) {
-            root = sibling;
-        } else {
-            if (parent == parent.parent.left) {
-                parent.parent.left = sibling;
+        if (leaving.size() == leaves.size())
+            throw new IllegalStateException("Can't remove all clients of the tree");
+
+        for (Client client : leaving) {
+            int node = leaves.get(client);
+
+            while (node != NONE && (flags[node] & PRUNED) == 0) {
+                flags[node] |= PRUNED;
+                node = parent[node];
+            }
+        }
+
+        root = prune(root);
+        parent[root] = NONE;
+
+        renumber(root, 0, 0);
+
+        while (height > 0 && levelSizes[height - 1] == 0) {
+            --height;
+        }
+
+        List<Client> sponsors = new ArrayList<>();
+
+        boolean replaced = (flags[root] & PROMOTED) != 0;
+        flags[root] &= ~PROMOTED;
+
+        if ((flags[root] & CHANGED) != 0)
+            collectSponsors(root, sponsors);
+        else if (replaced)
+            /* only the root was replaced, by a subtree that is otherwise intact */
+            sponsors.add(this.client[rightmostLeaf(root)]);
+
+        return sponsors;
+    }
+
+    /**
+     * Number of levels of the tree.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public int getClientCount() {
+        return leaves.size();
+    }
+
+    /**
+     * Lowest height a tree with this many clients can have.
+     */
+    public int getBalancedHeight() {
+        return levelsFor(leaves.size());
+    }
+
+    /**
+     * Rebuilds the tree with the lowest possible height, keeping the clients
+     * in their left to right order. Subtrees that already have the lowest
+     * height for their clients are kept with their keys; only the new nodes
+     * above them need keys. Every member that rebalances the same tree gets
+     * the same tree.
+     *
+     * @return number of new nodes, 0 if the tree was balanced already
+     */
+    public int rebalance() {
+        if (root == NONE || height == getBalancedHeight())
+            return 0;
+
+        int[] order = new int[leaves.size()];
+        int count = 0;
+        int top = 0;
+
+        queue[top++] = root;
+
+        while (top > 0) {
+            int node = queue[--top];
+
+            if (isLeaf(node)) {
+                order[count++] = node;
             } else {
-                parent.parent.right = sibling;
+                queue[top++] = right[node];
+                queue[top++] = left[node];
+            }
+        }
+
+        int old_root = root;
+        int[] created = new int[]{0};
+
+        root = rebuild(order, 0, count - 1, created);
+        parent[root] = NONE;
+
+        /* old inner nodes outside kept subtrees are gone */
+        top = 0;
+        queue[top++] = old_root;
+
+        while (top > 0) {
+            int node = queue[--top];
+
+            if ((flags[node] & KEPT) != 0) {
+                flags[node] &= ~KEPT;
+            } else if (!isLeaf(node)) {
+                queue[top++] = right[node];
+                queue[top++] = left[node];
+
+                freeNode(node);
             }
         }
 
-        decreaseLevels(sibling);
-        removalLevelsUpdate();
+        Arrays.fill(levelSizes, 0);
+        height = 0;
+        place(root, 0, 0);
 
-        return sibling.client;
+        return created[0];
     }
 
-    public List<Pair<Pair<Integer, Integer>, Long>> getHostingBranch() {
-        List<Pair<Pair<Integer, Integer>, Long>> branch = new ArrayList<>();
-        DHNode current = ownerLeaf;
+    /**
+     * Blinded keys of the owner path that are up to date, from the owner leaf
+     * upwards. The root is never sent: its key is the group key.
+     */
+    public BranchUpdate getHostingBranch() {
+        BranchUpdate branch = new BranchUpdate(height);
+        getHostingBranch(branch);
 
-        while (!current.equals(root)) {
-            branch.add(new Pair(new Pair(current.level, current.index), current.public_key));
-            current = current.parent;
+        return branch;
+    }
+
+    /**
+     * Fills the buffer with the hosting branch, replacing its contents.
+     */
+    public void getHostingBranch(BranchUpdate buffer) {
+        buffer.clear();
+        int current = ownerLeaf;
+
+        while (current != root && (flags[current] & DIRTY) == 0 && public_key[current] != null) {
+            buffer.add(level[current], index[current], public_key[current]);
+            flags[current] &= ~UNPUBLISHED;
+            current = parent[current];
+        }
+    }
+
+    /**
+     * Like {@link #getHostingBranch()}, but only with the nodes whose keys
+     * were computed here since the owner path was last sent.
+     */
+    public BranchUpdate getRecomputedBranch() {
+        BranchUpdate branch = new BranchUpdate(height);
+        int current = ownerLeaf;
+
+        while (current != root && (flags[current] & DIRTY) == 0 && public_key[current] != null) {
+            if ((flags[current] & UNPUBLISHED) != 0) {
+                branch.add(level[current], index[current], public_key[current]);
+                flags[current] &= ~UNPUBLISHED;
+            }
+
+            current = parent[current];
         }
 
         return branch;
     }
 
+    /**
+     * Shape of the tree with the blinded keys that are up to date.
+     */
+    public BlindedTree getBlindedTree() {
+        Client[] clients = new Client[levelNodes()];
+        BigInteger[] keys = new BigInteger[clients.length];
+
+        int top = 0;
+        int count = 0;
+
+        queue[top++] = root;
+
+        while (top > 0) {
+            int node = queue[--top];
+
+            clients[count] = client[node];
+            keys[count] = (flags[node] & DIRTY) == 0 ? public_key[node] : null;
+            ++count;
+
+            if (!isLeaf(node)) {
+                queue[top++] = right[node];
+                queue[top++] = left[node];
+            }
+        }
+
+        return new BlindedTree(clients, keys);
+    }
+
+    /**
+     * Merges the tree of another group with this one. The tree of the hosting
+     * group keeps its shape and the other one is hung under its insertion
+     * node, so members of both groups end up with the same tree as long as
+     * the hosting side passes hosting and the other side does not.
+     *
+     * @return the member of this side that sponsors the merge: on the hosting
+     * side the rightmost leaf under the insertion node, on the other side the
+     * rightmost leaf of its own tree
+     */
+    public Client merge(BlindedTree another_tree, boolean hosting) {
+        for (Client member : another_tree.getClients()) {
+            if (leaves.containsKey(member))
+                throw new IllegalArgumentException("Both trees contain client " + member);
+        }
+
+        if (hosting) {
+            int insertion_node = findInsertionNode(another_tree.getHeight());
+            graft(insertion_node, importTree(another_tree));
+
+            return this.client[rightmostLeaf(insertion_node)];
+        }
+
+        int own_tree = root;
+        int own_height = height;
+
+        unplace(own_tree);
+
+        root = importTree(another_tree);
+        place(root, 0, 0);
+
+        graft(findInsertionNode(own_height), own_tree);
+
+        return this.client[rightmostLeaf(own_tree)];
+    }
+
+    /**
+     * Where the tree reports exponentiations and its height.
+     */
+    public void setMetrics(GroupMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setEngine(KeyAgreementEngine engine) {
+        this.engine = engine;
+    }
+
+    public void setOwnerKeys(BigInteger secret_key, BigInteger public_key) {
+        owner_secret_key = secret_key;
+        owner_public_key = public_key;
+
+        if (ownerLeaf != NONE) {
+            this.secret_key[ownerLeaf] = secret_key;
+            this.public_key[ownerLeaf] = public_key;
+            flags[ownerLeaf] |= UNPUBLISHED;
+            touch(ownerLeaf);
+
+            markDirty(parent[ownerLeaf]);
+        }
+    }
+
+    /**
+     * Recomputes dirty nodes on the path from the owner leaf to the root.
+     * Keys that are still valid are kept, so after a single join or leave only
+     * the nodes above the change cost an exponentiation. Stops below the first
+     * node whose other child has no up to date blinded key yet.
+     *
+     * @return number of nodes recomputed
+     */
+    public int updateKeys() {
+        if (engine == null)
+            throw new IllegalStateException("Tree has no key agreement engine");
+
+        int recomputed = recomputePath();
+
+        /* an agreement and a blinding per node */
+        metrics.exponentiations().add(2L * recomputed);
+        metrics.treeHeight().set(height);
+
+        publish();
+
+        return recomputed;
+    }
+
+    private int recomputePath() {
+        int recomputed = 0;
+        int current = ownerLeaf;
+
+        while (current != root) {
+            int parent = this.parent[current];
+
+            if ((flags[parent] & DIRTY) != 0) {
+                int sibling = sibling(current);
+
+                if (secret_key[current] == null || (flags[sibling] & DIRTY) != 0 || public_key[sibling] == null)
+                    return recomputed;
+
+                secret_key[parent] = engine.agree(secret_key[current], public_key[sibling]);
+                public_key[parent] = engine.blind(secret_key[parent]);
+                flags[parent] = UNPUBLISHED;
+                touch(parent);
+
+                ++recomputed;
+            }
+
+            current = parent;
+        }
+
+        return recomputed;
+    }
+
+    /**
+     * Takes blinded keys of the branch another member has recomputed and
+     * refreshes own path with them. Nodes of the own path are only marked for
+     * recomputation, their keys are always derived locally.
+     */
+    public int updateKeys(BranchUpdate changedBranch) {
+        for (int i = 0; i < changedBranch.size(); ++i) {
+            int node = findNode(changedBranch.getLevel(i), changedBranch.getIndex(i));
+
+            if (node == NONE || isOwnerAncestor(node))
+                continue;
+
+            BigInteger key = changedBranch.getKey(i);
+
+            if (!key.equals(public_key[node]) || (flags[node] & DIRTY) != 0) {
+                public_key[node] = key;
+                secret_key[node] = null;
+                flags[node] = 0;
+                touch(node);
+
+                markDirty(parent[node]);
+            }
+        }
+
+        return updateKeys();
+    }
+
+    /**
+     * @deprecated use {@link #updateKeys(BranchUpdate)}
+     */
+    @Deprecated
+    public int updateKeys(List<Pair<Pair<Integer, Integer>, BigInteger>> changedBranch) {
+        return updateKeys(BranchUpdate.fromPairs(changedBranch));
+    }
+
+    /**
+     * Key of the root, or null while it is stale.
+     */
+    public BigInteger getGroupKey() {
+        if (root == NONE || (flags[root] & DIRTY) != 0)
+            return null;
+
+        return secret_key[root];
+    }
+
+    /**
+     * Version the tree published last. Needs no lock and never blocks, and
+     * the version does not change when the tree does.
+     */
+    public TreeVersion getVersion() {
+        return published.get();
+    }
+
+    /**
+     * Publishes the current state as a new version, unless nothing changed
+     * since the last one. Only the nodes marked stale and their ancestors get
+     * new version nodes.
+     */
+    public TreeVersion publish() {
+        TreeVersion last = published.get();
+        TreeVersion.Node new_root = root == NONE ? null : versionOf(root);
+
+        if (new_root == last.getRoot())
+            return last;
+
+        TreeVersion next = new TreeVersion(last.getVersion() + 1, new_root, getGroupKey(), leaves.size(), height);
+        published.set(next);
+
+        return next;
+    }
+
+    public boolean contains(Client client) {
+        return leaves.containsKey(client);
+    }
+
     public void clear() {
-        root = null;
+        reset();
         owner = null;
-        ownerLeaf = null;
-        levels.clear();
+
+        publish();
     }
 
-    private DHNode findClientLeaf(Client client) {
-        DHNode leaf = traverse(root, client);
+    /**
+     * Version node of the node, new for stale nodes and the one of the last
+     * version otherwise. Ancestors of a stale node are always stale, so only
+     * stale nodes are walked.
+     */
+    private TreeVersion.Node versionOf(int node) {
+        if ((flags[node] & STALE) == 0)
+            return versionNode[node];
 
-        if (leaf == null)
-            throw new NullPointerException("Tree does not contain client " + owner);
+        flags[node] &= ~STALE;
 
-        return leaf;
+        BigInteger key = (flags[node] & DIRTY) == 0 ? public_key[node] : null;
+
+        if (isLeaf(node))
+            versionNode[node] = new TreeVersion.Node(client[node], key, null, null);
+        else
+            versionNode[node] = new TreeVersion.Node(null, key, versionOf(left[node]), versionOf(right[node]));
+
+        return versionNode[node];
     }
 
-    private DHNode traverse(DHNode node, Client client) {
-        if (node.isLeaf()) {
-            if (node.client.equals(client))
-                return node;
-            else
-                return null;
+    private int levelNodes() {
+        int nodes = 0;
+
+        for (int i = 0; i < height; ++i) {
+            nodes += levelSizes[i];
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Drops leavers under a node marked PRUNED and returns what takes the
+     * node's place: the node itself, the subtree of its only remaining child,
+     * or NONE if nothing remains. Level counts lose the dropped nodes here;
+     * moved nodes are counted again by renumber.
+     */
+    private int prune(int node) {
+        flags[node] &= ~PRUNED;
+
+        if (isLeaf(node)) {
+            --levelSizes[level[node]];
+            leaves.remove(client[node]);
+            freeNode(node);
+
+            return NONE;
+        }
+
+        int new_left = (flags[left[node]] & PRUNED) != 0 ? prune(left[node]) : left[node];
+        int new_right = (flags[right[node]] & PRUNED) != 0 ? prune(right[node]) : right[node];
+
+        if (new_left == NONE || new_right == NONE) {
+            int survivor = new_left == NONE ? new_right : new_left;
+
+            --levelSizes[level[node]];
+            freeNode(node);
+
+            if (survivor != NONE)
+                flags[survivor] |= PROMOTED;
+
+            return survivor;
         }
 
-        DHNode left_result = traverse(node.left, client);
+        left[node] = new_left;
+        right[node] = new_right;
+        parent[new_left] = node;
+        parent[new_right] = node;
+        measure(node);
 
-        if (left_result != null)
-            return left_result;
+        /* a leaver was below, so the node needs a new key */
+        flags[node] |= CHANGED | DIRTY | STALE;
 
-        return traverse(node.right, client);
+        return node;
     }
 
-    private void merge(DHTree another_tree) {
-        if (another_tree.root == null)
+    /**
+     * Gives nodes that moved up during prune their new positions. A node
+     * keeps its position unless an ancestor was removed, and then its whole
+     * subtree moves with it.
+     */
+    private void renumber(int node, int level, int index) {
+        if (this.level[node] != level || this.index[node] != index) {
+            unplace(node);
+            place(node, level, index);
             return;
+        }
 
-        if (root == null) {
-            root = another_tree.root;
-            levels = another_tree.levels;
-            owner = another_tree.owner;
-            ownerLeaf = another_tree.ownerLeaf;
+        if ((flags[node] & CHANGED) != 0) {
+            renumber(left[node], level + 1, 2 * index);
+            renumber(right[node], level + 1, 2 * index + 1);
+        }
+    }
 
-            another_tree.clear();
-            return;
+    /**
+     * Walks the changed nodes under a changed node, clears the marks of
+     * removeClients and adds a sponsor for every lowest changed node: the
+     * rightmost leaf of its child that moved up, the right one if both did.
+     */
+    private void collectSponsors(int node, List<Client> sponsors) {
+        flags[node] &= ~CHANGED;
+
+        int left_child = left[node];
+        int right_child = right[node];
+
+        boolean lowest = (flags[left_child] & CHANGED) == 0 && (flags[right_child] & CHANGED) == 0;
+
+        if ((flags[left_child] & CHANGED) != 0)
+            collectSponsors(left_child, sponsors);
+
+        if ((flags[right_child] & CHANGED) != 0)
+            collectSponsors(right_child, sponsors);
+
+        /* a lowest changed node always has a child that moved up */
+        int promoted = (flags[right_child] & PROMOTED) != 0 ? right_child : left_child;
+
+        flags[left_child] &= ~PROMOTED;
+        flags[right_child] &= ~PROMOTED;
+
+        if (lowest)
+            sponsors.add(this.client[rightmostLeaf(promoted)]);
+    }
+
+    /**
+     * Builds the nodes of the blinded tree with their keys and returns its
+     * root, not yet placed.
+     */
+    private int importTree(BlindedTree tree) {
+        int[] parents = new int[tree.size() + 1];
+        int[] created = new int[tree.size()];
+        int top = 0;
+        int first = NONE;
+
+        for (int i = 0; i < tree.size(); ++i) {
+            Client member = tree.getClient(i);
+            int node = member != null ? newLeaf(member) : newNode();
+
+            created[i] = node;
+
+            public_key[node] = tree.getKey(i);
+
+            if (first == NONE) {
+                first = node;
+            } else {
+                int parent = parents[--top];
+                this.parent[node] = parent;
+
+                if (left[parent] == NONE)
+                    left[parent] = node;
+                else
+                    right[parent] = node;
+            }
+
+            if (member == null) {
+                /* the right child comes after the whole left subtree */
+                parents[top++] = node;
+                parents[top++] = node;
+            }
+        }
+
+        /* children come after their parent in pre-order */
+        for (int i = created.length - 1; i >= 0; --i) {
+            if (tree.getClient(i) == null)
+                measure(created[i]);
         }
 
-        DHNode insertion_node = findInsertionNode(another_tree);
+        return first;
+    }
+
+    private void allocate(int capacity) {
+        parent = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        level = new int[capacity];
+        index = new int[capacity];
+        flags = new byte[capacity];
+
+        leafCount = new int[capacity];
+        subtreeHeight = new int[capacity];
+        shallowest = new int[capacity];
+
+        client = new Client[capacity];
+        secret_key = new BigInteger[capacity];
+        public_key = new BigInteger[capacity];
+        versionNode = new TreeVersion.Node[capacity];
+
+        levelSizes = new int[8];
+        queue = new int[capacity];
+
+        used = 0;
+        free = NONE;
+        height = 0;
+        root = NONE;
+        ownerLeaf = NONE;
+    }
+
+    private void reset() {
+        Arrays.fill(client, 0, used, null);
+        Arrays.fill(secret_key, 0, used, null);
+        Arrays.fill(public_key, 0, used, null);
+        Arrays.fill(versionNode, 0, used, null);
+        Arrays.fill(levelSizes, 0);
+
+        used = 0;
+        free = NONE;
+        height = 0;
+        root = NONE;
+        ownerLeaf = NONE;
 
-        DHNode new_node = new DHNode();
-        new_node.left = insertion_node;
-        new_node.right = another_tree.root;
-        new_node.parent = insertion_node.parent;
-        new_node.level = insertion_node.level;
-        new_node.index = insertion_node.index;
-        
-        another_tree.root.parent = new_node;
+        leaves.clear();
+    }
+
+    private int newNode() {
+        int node;
 
-        if (insertion_node == root) {
-            root = new_node;
+        if (free != NONE) {
+            node = free;
+            free = parent[node];
         } else {
-            if (insertion_node == insertion_node.parent.left)
-                insertion_node.parent.left = new_node;
-            else
-                insertion_node.parent.right = new_node;
+            if (used == parent.length)
+                grow();
+
+            node = used++;
         }
 
-        insertion_node.parent = new_node;
+        parent[node] = NONE;
+        left[node] = NONE;
+        right[node] = NONE;
+        level[node] = -1;
+        index[node] = -1;
+        flags[node] = STALE;
 
-        updateLevel(new_node);
+        leafCount[node] = 1;
+        subtreeHeight[node] = 1;
+        shallowest[node] = 0;
 
-        another_tree.clear();
+        return node;
     }
 
-    private DHNode findInsertionNode(DHTree another_tree) {
-        DHNode insertion_node = root;
+    private int newLeaf(Client client) {
+        int leaf = newNode();
 
-        int i = 0;
-        LinkedList<DHNode> level = levels.get(i);
-        DHNode possible_insertion_node = level.getLast();
+        this.client[leaf] = client;
+        leaves.put(client, leaf);
 
-        while (true) {
-            DHNode current = level.getLast();
+        if (client == owner)
+            ownerLeaf = leaf;
 
-            int max_height = 0;
-            int another_tree_height = another_tree.levels.size() - another_tree.root.level;
+        return leaf;
+    }
+
+    private void freeNode(int node) {
+        client[node] = null;
+        secret_key[node] = null;
+        public_key[node] = null;
+        versionNode[node] = null;
 
-            do {
-                int this_height = levels.size() - current.level;
-                max_height = Math.max(max_height, this_height);
+        parent[node] = free;
+        free = node;
+    }
 
-                if (max_height > another_tree_height)
-                    break;
+    /**
+     * Makes room for the given number of nodes at once.
+     */
+    private void reserve(int nodes) {
+        while (parent.length < nodes) {
+            grow();
+        }
+    }
 
-            } while (!current.equals(level.getLast()));
+    private void grow() {
+        int capacity = parent.length * 2;
 
-            if (another_tree_height >= max_height) {
-                insertion_node = root;
-                break;
-            }
+        parent = Arrays.copyOf(parent, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        level = Arrays.copyOf(level, capacity);
+        index = Arrays.copyOf(index, capacity);
+        flags = Arrays.copyOf(flags, capacity);
 
-            if (isJoinable(possible_insertion_node)) {
-                insertion_node = possible_insertion_node;
-                break;
-            } else {
-                possible_insertion_node = level.previous(possible_insertion_node);
+        leafCount = Arrays.copyOf(leafCount, capacity);
+        subtreeHeight = Arrays.copyOf(subtreeHeight, capacity);
+        shallowest = Arrays.copyOf(shallowest, capacity);
 
-                if (possible_insertion_node.equals(level.getLast())) {
-                    ++i;
+        client = Arrays.copyOf(client, capacity);
+        secret_key = Arrays.copyOf(secret_key, capacity);
+        public_key = Arrays.copyOf(public_key, capacity);
+        versionNode = Arrays.copyOf(versionNode, capacity);
 
-                    if (i >= levels.size())
-                        break;
+        queue = new int[capacity];
+    }
 
-                    level = levels.get(i);
-                    possible_insertion_node = level.getLast();
-                }
-            }
+    private boolean isLeaf(int node) {
+        if (left[node] == NONE && right[node] == NONE) {
+            if (client[node] != null)
+                return true;
+            else
+                throw new NullPointerException("Leaf with no participants.Person owner");
         }
 
-        return insertion_node;
+        return false;
     }
 
-    private boolean isJoinable(DHNode node) {
-        int node_height = levels.size() - node.level;
+    private int sibling(int node) {
+        int parent = this.parent[node];
+        return (node == left[parent]) ? right[parent] : left[parent];
+    }
 
-        return node_height + 1 <= levels.size() && node.left == null;
+    private void replaceChild(int parent, int old_child, int new_child) {
+        if (parent == NONE)
+            root = new_child;
+        else if (left[parent] == old_child)
+            left[parent] = new_child;
+        else
+            right[parent] = new_child;
     }
 
-    private void updateLevel(DHNode node) {
-        if (node.level >= levels.size())
-            levels.add(new LinkedList<>());
+    private boolean isOwnerAncestor(int node) {
+        return level[node] <= level[ownerLeaf] && (index[ownerLeaf] >> (level[ownerLeaf] - level[node])) == index[node];
+    }
 
-        if (node.left != null) {
-            levels.get(node.level).replace(node.left, node);
-        } else {
-            DHNode newNeighbour = findNewNeighbor(node);
+    /**
+     * Marks node and all its ancestors as stale. Ancestors of a dirty node are
+     * always dirty, so the walk stops at the first one already marked.
+     */
+    private void markDirty(int node) {
+        touch(node);
 
-            if (newNeighbour == null)
-                levels.get(node.level).add(node);
-            else
-                levels.get(node.level).insertBefore(newNeighbour, node);
+        while (node != NONE && (flags[node] & DIRTY) == 0) {
+            flags[node] |= DIRTY;
+            node = parent[node];
         }
+    }
 
-        if (node.right != null) {
-            node.right.level = node.level + 1;
-            updateLevel(node.right);
+    /**
+     * Marks node and all its ancestors for the next published version, up to
+     * the first ancestor already marked. New nodes are marked from the start,
+     * so the walk always goes on past the node itself.
+     */
+    private void touch(int node) {
+        if (node == NONE)
+            return;
+
+        flags[node] |= STALE;
+        node = parent[node];
+
+        while (node != NONE && (flags[node] & STALE) == 0) {
+            flags[node] |= STALE;
+            node = parent[node];
         }
+    }
 
-        if (node.left != null) {
-            node.left.level = node.level + 1;
-            updateLevel(node.left);
+    private int rightmostLeaf(int node) {
+        while (!isLeaf(node)) {
+            node = right[node];
         }
+
+        return node;
     }
 
-    private void decreaseLevels(DHNode node) {
-        if (node == null)
-            return;
+    private int findNode(int level, int index) {
+        int current = root;
+
+        for (int bit = level - 1; bit >= 0 && current != NONE; --bit) {
+            current = ((index >> bit) & 1) == 0 ? left[current] : right[current];
+        }
+
+        if (current == NONE || this.level[current] != level)
+            return NONE;
 
-        node.level = node.level - 1;
+        return current;
+    }
+
+    private int findClientLeaf(Client client) {
+        Integer leaf = leaves.get(client);
+
+        if (leaf == null)
+            throw new NullPointerException("Tree does not contain client " + client);
 
-        decreaseLevels(node.left);
-        decreaseLevels(node.right);
+        return leaf;
     }
 
-    private void removalLevelsUpdate() {
-        LinkedList<DHNode> level;
+    /**
+     * Hangs the subtree under a new node that takes the place of insertion_node.
+     */
+    private void graft(int insertion_node, int subtree) {
+        int insertion_level = level[insertion_node];
+        int insertion_index = index[insertion_node];
+
+        unplace(insertion_node);
+
+        int new_node = newNode();
+        left[new_node] = insertion_node;
+        right[new_node] = subtree;
+        parent[new_node] = parent[insertion_node];
+
+        replaceChild(parent[insertion_node], insertion_node, new_node);
+
+        parent[insertion_node] = new_node;
+        parent[subtree] = new_node;
 
-        for (int i = levels.size() - 1; i >= 0; --i) {
-            level = levels.get(i);
-            update(level, i);
+        measure(new_node);
+        measureUp(parent[new_node]);
 
-            if (level.isEmpty())
-                levels.remove(i);
+        place(new_node, insertion_level, insertion_index);
+        markDirty(new_node);
+    }
+
+    /**
+     * Shallowest rightmost leaf under which a tree of the given height can be
+     * hung without increasing the height of this tree, or the root if there is
+     * no such leaf. Follows the shallowest subtree down from the root, so it
+     * costs one step per level.
+     */
+    private int findInsertionNode(int another_tree_height) {
+        int node = root;
+
+        while (!isLeaf(node)) {
+            node = shallowest[right[node]] <= shallowest[left[node]] ? right[node] : left[node];
         }
+
+        if (node != root && level[node] + another_tree_height + 1 <= height)
+            return node;
+
+        return root;
     }
 
-    private void update(LinkedList<DHNode> level, int levelIndex) {
-        DHNode current = level.getLast();
+    /**
+     * Balanced tree over the leaves order[first..last]. An old subtree over
+     * exactly those leaves is reused if it is balanced already.
+     */
+    private int rebuild(int[] order, int first, int last, int[] created) {
+        int leaf = order[first];
+        int count = last - first + 1;
 
-        while (!level.isEmpty() && !current.equals(level.getFirst())) {
-            if (current.level < levelIndex) {
-                DHNode newNeighbour = findNewNeighbor(current);
+        if (count == 1)
+            return leaf;
 
-                if (newNeighbour == null) {
-                    levels.get(current.level).add(current);
-                } else {
-                    levels.get(newNeighbour.level).insertBefore(newNeighbour, current);
-                }
+        /* old subtrees whose leftmost leaf this is, from small to large */
+        for (int node = leaf; parent[node] != NONE && left[parent[node]] == node; ) {
+            node = parent[node];
 
-                level.remove(current);
+            if (leafCount[node] > count)
+                break;
+
+            if (leafCount[node] == count && subtreeHeight[node] == levelsFor(count)) {
+                flags[node] |= KEPT;
+                return node;
             }
         }
+
+        int middle = first + (count + 1) / 2 - 1;
+
+        int new_left = rebuild(order, first, middle, created);
+        int new_right = rebuild(order, middle + 1, last, created);
+
+        int node = newNode();
+        left[node] = new_left;
+        right[node] = new_right;
+        parent[new_left] = node;
+        parent[new_right] = node;
+        flags[node] |= DIRTY;
+
+        measure(node);
+        ++created[0];
+
+        return node;
     }
 
-    private DHNode findNewNeighbor(DHNode node) {
-        if (node == null)
-            throw new NullPointerException("Can't find neighbour of null");
+    private static int levelsFor(int clients) {
+        return clients <= 1 ? 1 : 33 - Integer.numberOfLeadingZeros(clients - 1);
+    }
 
-        if (node == root)
-            return null;
+    /**
+     * Recomputes the subtree figures of an inner node from its children.
+     */
+    private void measure(int node) {
+        int l = left[node];
+        int r = right[node];
 
-        DHNode current = node.parent;
+        leafCount[node] = leafCount[l] + leafCount[r];
+        subtreeHeight[node] = Math.max(subtreeHeight[l], subtreeHeight[r]) + 1;
+        shallowest[node] = Math.min(shallowest[l], shallowest[r]) + 1;
+    }
 
-        if (levels.get(current.level).isEmpty() || levels.get(current.level + 1).isEmpty())
-            return null;
+    /**
+     * Measures the node and its ancestors again, up to the first one whose
+     * figures stay the same.
+     */
+    private void measureUp(int node) {
+        while (node != NONE) {
+            int count = leafCount[node];
+            int tallest = subtreeHeight[node];
+            int nearest = shallowest[node];
 
-        if (node == current.left) {
-            if (current.right != null) {
-                return current.right;
-            }
+            measure(node);
+
+            if (count == leafCount[node] && tallest == subtreeHeight[node] && nearest == shallowest[node])
+                return;
+
+            node = parent[node];
         }
+    }
+
+    /**
+     * Takes the subtree out of the level counts before it moves.
+     */
+    private void unplace(int node) {
+        if (node == NONE)
+            return;
 
-        while (true) {
-            current = levels.get(current.level).next(current);
+        --levelSizes[level[node]];
 
-            if (current.left != null)
-                return current.left;
-            else if (current.right != null)
-                return current.right;
+        unplace(left[node]);
+        unplace(right[node]);
+
+        while (height > 0 && levelSizes[height - 1] == 0) {
+            --height;
         }
     }
+
+    /**
+     * Puts the subtree at the given position, renumbering all its nodes.
+     */
+    private void place(int node, int level, int index) {
+        if (node == NONE)
+            return;
+
+        this.level[node] = level;
+        this.index[node] = index;
+
+        if (level >= levelSizes.length)
+            levelSizes = Arrays.copyOf(levelSizes, levelSizes.length * 2);
+
+        ++levelSizes[level];
+        height = Math.max(height, level + 1);
+
+        place(left[node], level + 1, 2 * index);
+        place(right[node], level + 1, 2 * index + 1);
+    }
 }
@@ -0,0 +1,122 @@
+package utils;
+
+import crypto.GroupParameters;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of keys, shared by the tree file and the message codec. A key
+ * is an unsigned magnitude after a two byte length; the length 0xFFFF stands
+ * for no key. Group parameters are a byte type, followed by p and g for
+ * finite-field groups.
+ */
+public final class KeyEncoding {
+    public static final int NO_KEY = 0xFFFF;
+
+    /* client id of inner nodes in encoded trees */
+    public static final long INNER_NODE = -1;
+
+    private static final GroupParameters.Type[] GROUP_TYPES = GroupParameters.Type.values();
+
+    private KeyEncoding() {
+    }
+
+    /**
+     * Bytes the key takes, 2 for no key.
+     */
+    public static int size(BigInteger key) {
+        return 2 + (key != null ? (key.bitLength() + 7) / 8 : 0);
+    }
+
+    /**
+     * Writes the key, or the mark for no key if it is null.
+     */
+    public static void put(ByteBuffer out, BigInteger key) {
+        if (key == null) {
+            out.putShort((short) NO_KEY);
+            return;
+        }
+
+        if (key.signum() < 0)
+            throw new IllegalArgumentException("Negative key");
+
+        int length = (key.bitLength() + 7) / 8;
+
+        if (length >= NO_KEY)
+            throw new IllegalArgumentException("Key too long: " + key.bitLength() + " bits");
+
+        /* BigInteger only hands out its magnitude as a fresh array, with a sign byte in front at times */
+        byte[] bytes = key.toByteArray();
+
+        out.putShort((short) length);
+        out.put(bytes, bytes.length - length, length);
+    }
+
+    /**
+     * Reads a key, null if there is none.
+     */
+    public static BigInteger get(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+
+        if (length == NO_KEY)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Reads a key that has to be there.
+     *
+     * @throws IllegalArgumentException if there is none
+     */
+    public static BigInteger getRequired(ByteBuffer in) {
+        BigInteger key = get(in);
+
+        if (key == null)
+            throw new IllegalArgumentException("Missing key");
+
+        return key;
+    }
+
+    public static int size(GroupParameters parameters) {
+        if (parameters.isCurve())
+            return 1;
+
+        return 1 + size(parameters.getP()) + size(parameters.getG());
+    }
+
+    public static void put(ByteBuffer out, GroupParameters parameters) {
+        out.put((byte) parameters.getType().ordinal());
+
+        if (!parameters.isCurve()) {
+            put(out, parameters.getP());
+            put(out, parameters.getG());
+        }
+    }
+
+    public static GroupParameters getParameters(ByteBuffer in) {
+        int type = in.get() & 0xFF;
+
+        if (type >= GROUP_TYPES.length)
+            throw new IllegalArgumentException("Unknown group type: " + type);
+
+        if (GROUP_TYPES[type] != GroupParameters.Type.MODP)
+            return GroupParameters.curve(GROUP_TYPES[type]);
+
+        return getModp(in);
+    }
+
+    /**
+     * Reads the p and g of a finite-field group.
+     */
+    public static GroupParameters getModp(ByteBuffer in) {
+        BigInteger p = getRequired(in);
+        BigInteger g = getRequired(in);
+
+        return GroupParameters.modp(p, g);
+    }
+}
@@ -1,6 +1,7 @@
 package utils;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -50,15 +51,26 @@ public class LinkedList<T extends Object> implements Iterable<T> {
     private int size;
 
     public LinkedList() {
+        this(false);
+    }
+
+    /**
+     * @param byIdentity look elements up by reference instead of equals and
+     *                   hashCode, for values that are expensive to hash
+     */
+    public LinkedList(boolean byIdentity) {
         head = null;
         tail = null;
 
-        map = new HashMap<>();
+        map = byIdentity ? new IdentityHashMap<>() : new HashMap<>();
 
         size = 0;
     }
 
     public void add(T value) {
+        if (map.containsKey(value))
+            throw new IllegalArgumentException("List already contains value " + value);
+
         Element<T> new_element = new Element<>(value);
 
         if (head == null) {
@@ -0,0 +1,83 @@
+package utils;
+
+import participants.Client;
+
+/**
+ * One change of a member's tree as the branch log keeps it: a member that
+ * joined or left, or a branch of new blinded keys. Replayed in order on a
+ * tree of the epoch before the first one, the changes give the tree of the
+ * epoch of the last one.
+ */
+public final class TreeChange {
+    public enum Type {
+        JOIN, LEAVE, BRANCH
+    }
+
+    private final Type type;
+    private final long epoch;
+    private final Client client;
+    private final BranchUpdate branch;
+
+    private TreeChange(Type type, long epoch, Client client, BranchUpdate branch) {
+        this.type = type;
+        this.epoch = epoch;
+        this.client = client;
+        this.branch = branch;
+    }
+
+    public static TreeChange join(long epoch, Client client) {
+        if (client == null)
+            throw new NullPointerException("Join needs a client");
+
+        return new TreeChange(Type.JOIN, epoch, client, null);
+    }
+
+    public static TreeChange leave(long epoch, Client client) {
+        if (client == null)
+            throw new NullPointerException("Leave needs a client");
+
+        return new TreeChange(Type.LEAVE, epoch, client, null);
+    }
+
+    /**
+     * The branch, at its own epoch. It must not change afterwards.
+     */
+    public static TreeChange branch(BranchUpdate branch) {
+        if (branch == null)
+            throw new NullPointerException("Branch change needs a branch");
+
+        return new TreeChange(Type.BRANCH, branch.getEpoch(), null, branch);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Member that joined or left, null for a branch.
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Blinded keys of a BRANCH, null for the other types.
+     */
+    public BranchUpdate getBranch() {
+        return branch;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.TreeChange{" +
+                "type=" + type +
+                ", epoch=" + epoch +
+                (client != null ? ", client=" + client : "") +
+                (branch != null ? ", branch=" + branch : "") +
+                '}';
+    }
+}
@@ -0,0 +1,223 @@
+package utils;
+
+import crypto.GroupParameters;
+import participants.Client;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A member's tree saved to a memory-mapped file, so that it can rejoin after
+ * a restart without rebuilding the tree. Only public data is saved: shape,
+ * client ids and blinded keys, never a secret key. Opening a file maps it and
+ * reads the header; the nodes are decoded when {@link #getTree} is called.
+ *
+ * <pre>
+ * int    magic "DHTS"
+ * int    format version
+ * long   id of the owner
+ * byte[32] digest of the tree, see {@link #digest}
+ * long   epoch of the tree
+ * byte   group type
+ * key    p, finite-field groups only
+ * key    g, finite-field groups only
+ * int    number of nodes
+ * nodes  in pre-order: long client id, -1 for inner nodes, and key
+ * </pre>
+ *
+ * Keys and group parameters are encoded as in {@link KeyEncoding}. Files
+ * before version 4 have a weaker long digest, which is not used; version 1
+ * files also have no epoch and no group type and are finite-field groups,
+ * and version 2 files have no epoch.
+ */
+public final class TreeFile {
+    private static final int MAGIC = 0x44485453;
+    private static final int VERSION = 4;
+
+    private static final int DIGEST_SIZE = 32;
+
+    /* epoch of files that have none */
+    private static final long NO_EPOCH = -1;
+
+    private final MappedByteBuffer buffer;
+
+    private final long owner;
+    private final byte[] digest;
+    private final long epoch;
+    private final GroupParameters parameters;
+    private final int nodes;
+    private final int nodesOffset;
+
+    private TreeFile(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not a tree file");
+
+        int version = buffer.getInt();
+
+        if (version < 1 || version > VERSION)
+            throw new IllegalArgumentException("Unsupported tree file version: " + version);
+
+        owner = buffer.getLong();
+
+        if (version >= 4) {
+            digest = new byte[DIGEST_SIZE];
+            buffer.get(digest);
+        } else {
+            buffer.getLong();
+            digest = null;
+        }
+        epoch = version >= 3 ? buffer.getLong() : NO_EPOCH;
+        parameters = version == 1 ? KeyEncoding.getModp(buffer) : KeyEncoding.getParameters(buffer);
+        nodes = buffer.getInt();
+        nodesOffset = buffer.position();
+
+        if (nodes < 1)
+            throw new IllegalArgumentException("Tree file has no nodes");
+    }
+
+    /**
+     * Saves the tree, replacing the file at once so that a crash never
+     * leaves half a file behind.
+     */
+    public static void write(Path file, long owner, long epoch, GroupParameters parameters,
+                             BlindedTree tree, ToLongFunction<Client> ids) throws IOException {
+        int size = 4 + 4 + 8 + DIGEST_SIZE + 8 + KeyEncoding.size(parameters) + 4;
+
+        for (int i = 0; i < tree.size(); ++i) {
+            size += 8 + KeyEncoding.size(tree.getKey(i));
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(owner);
+            out.put(digest(tree, ids));
+            out.putLong(epoch);
+            KeyEncoding.put(out, parameters);
+            out.putInt(tree.size());
+
+            for (int i = 0; i < tree.size(); ++i) {
+                Client client = tree.getClient(i);
+
+                out.putLong(client != null ? ids.applyAsLong(client) : KeyEncoding.INNER_NODE);
+                KeyEncoding.put(out, tree.getKey(i));
+            }
+
+            out.force();
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the file and reads its header.
+     *
+     * @throws IllegalArgumentException if it is not a tree file
+     */
+    public static TreeFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TreeFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Tree file is truncated", e);
+        }
+    }
+
+    /**
+     * SHA-256 of the nodes of a tree as the file encodes them: its shape, the
+     * client ids and the blinded keys. Two members whose trees have the same
+     * digest can use each other's blinded keys.
+     */
+    public static byte[] digest(BlindedTree tree, ToLongFunction<Client> ids) {
+        MessageDigest sha;
+
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JDK has no SHA-256", e);
+        }
+
+        ByteBuffer node = ByteBuffer.allocate(64);
+
+        for (int i = 0; i < tree.size(); ++i) {
+            Client client = tree.getClient(i);
+            BigInteger key = tree.getKey(i);
+            int size = 8 + KeyEncoding.size(key);
+
+            if (size > node.capacity())
+                node = ByteBuffer.allocate(size);
+
+            node.clear();
+            node.putLong(client != null ? ids.applyAsLong(client) : KeyEncoding.INNER_NODE);
+            KeyEncoding.put(node, key);
+
+            sha.update(node.array(), 0, node.position());
+        }
+
+        return sha.digest();
+    }
+
+    public long getOwner() {
+        return owner;
+    }
+
+    /**
+     * Digest of the saved tree, null for files from before version 4.
+     */
+    public byte[] getDigest() {
+        return digest != null ? digest.clone() : null;
+    }
+
+    /**
+     * Epoch of the saved tree, -1 for files from before epochs were saved.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public GroupParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Decodes the saved tree, looking clients up by id.
+     */
+    public BlindedTree getTree(LongFunction<Client> clients) {
+        Client[] members = new Client[nodes];
+        BigInteger[] keys = new BigInteger[nodes];
+
+        /* a private cursor, so the file can be decoded more than once */
+        ByteBuffer in = buffer.duplicate();
+        in.position(nodesOffset);
+
+        if ((long) nodes * 10 > in.remaining())
+            throw new IllegalArgumentException("Tree file is truncated");
+
+        for (int i = 0; i < nodes; ++i) {
+            long id = in.getLong();
+
+            members[i] = id != KeyEncoding.INNER_NODE ? clients.apply(id) : null;
+            keys[i] = KeyEncoding.get(in);
+        }
+
+        return new BlindedTree(members, keys);
+    }
+}
@@ -0,0 +1,143 @@
+package utils;
+
+import participants.Client;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable state of a {@link DHTree} at one point: its shape, the blinded
+ * keys that were up to date and the group key. A tree publishes a new version
+ * after every rekey; nodes off the changed paths are shared with the previous
+ * version, so publishing costs one node per changed node. Any thread can read
+ * a version without locking while the tree goes on changing.
+ */
+public final class TreeVersion {
+    private final long version;
+    private final Node root;
+    private final BigInteger groupKey;
+    private final int clientCount;
+    private final int height;
+
+    TreeVersion(long version, Node root, BigInteger groupKey, int clientCount, int height) {
+        this.version = version;
+        this.root = root;
+        this.groupKey = groupKey;
+        this.clientCount = clientCount;
+        this.height = height;
+    }
+
+    /**
+     * Number of the version, one more than the version the tree published
+     * before it.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Group key of this version, or null if it was stale.
+     */
+    public BigInteger getGroupKey() {
+        return groupKey;
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * Number of levels of the tree.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Clients from left to right.
+     */
+    public List<Client> getClients() {
+        List<Client> clients = new ArrayList<>(clientCount);
+
+        if (root != null)
+            collectClients(root, clients);
+
+        return clients;
+    }
+
+    /**
+     * Shape and blinded keys of this version, or null if it has no clients.
+     */
+    public BlindedTree getBlindedTree() {
+        if (root == null)
+            return null;
+
+        int size = 2 * clientCount - 1;
+
+        Client[] clients = new Client[size];
+        BigInteger[] keys = new BigInteger[size];
+
+        Node[] stack = new Node[height + 1];
+        int top = 0;
+        int count = 0;
+
+        stack[top++] = root;
+
+        while (top > 0) {
+            Node node = stack[--top];
+
+            clients[count] = node.client;
+            keys[count] = node.blindedKey;
+            ++count;
+
+            if (node.client == null) {
+                stack[top++] = node.right;
+                stack[top++] = node.left;
+            }
+        }
+
+        return new BlindedTree(clients, keys);
+    }
+
+    Node getRoot() {
+        return root;
+    }
+
+    private static void collectClients(Node node, List<Client> clients) {
+        if (node.client != null) {
+            clients.add(node.client);
+            return;
+        }
+
+        collectClients(node.left, clients);
+        collectClients(node.right, clients);
+    }
+
+    @Override
+    public String toString() {
+        return "TreeVersion{" +
+                "version=" + version +
+                ", clients=" + clientCount +
+                ", height=" + height +
+                '}';
+    }
+
+    /**
+     * Node of a version: a leaf with its client, or an inner node with both
+     * children. The blinded key is null while it was stale.
+     */
+    static final class Node {
+        private final Client client;
+        private final BigInteger blindedKey;
+        private final Node left;
+        private final Node right;
+
+        Node(Client client, BigInteger blindedKey, Node left, Node right) {
+            this.client = client;
+            this.blindedKey = blindedKey;
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
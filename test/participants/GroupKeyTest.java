@@ -0,0 +1,133 @@
+package participants;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Every member of a group ends up with the same key, and a member that left
+ * does not have it.
+ */
+class GroupKeyTest {
+    private static final BigInteger P = new BigInteger("170141183460469231731687303715884105727");
+    private static final BigInteger G = BigInteger.valueOf(3);
+
+    private static List<Person> group(HierarchyLevel[] level, int size) {
+        Person first = new Person(P, G);
+        List<Person> members = new ArrayList<>();
+        members.add(first);
+        level[0] = new HierarchyLevel(first);
+
+        for (int i = 1; i < size; ++i) {
+            Person member = new Person();
+            member.joinGroup(level[0]);
+            members.add(member);
+        }
+
+        return members;
+    }
+
+    static BigInteger assertAgree(List<Person> members) {
+        Set<BigInteger> keys = new HashSet<>();
+
+        for (Person member : members) {
+            assertNotNull(member.getGroupKey(), "No key at member " + member.getId());
+            keys.add(member.getGroupKey());
+        }
+
+        assertEquals(1, keys.size(), "Members disagree on the key");
+
+        return keys.iterator().next();
+    }
+
+    @Test
+    void churn() {
+        HierarchyLevel[] level = new HierarchyLevel[1];
+        List<Person> members = group(level, 16);
+        Random random = new Random(3);
+
+        assertAgree(members);
+
+        for (int step = 0; step < 40; ++step) {
+            if (random.nextBoolean() || members.size() < 4) {
+                Person member = new Person();
+                member.joinGroup(level[0]);
+                members.add(member);
+            } else {
+                Person member = members.remove(1 + random.nextInt(members.size() - 1));
+                member.leaveGroup(level[0]);
+
+                assertFalse(assertAgree(members).equals(member.getGroupKey()), "Leaver still has the key");
+                continue;
+            }
+
+            assertAgree(members);
+        }
+
+        assertEquals(level[0].getGroupKey(), assertAgree(members));
+    }
+
+    @Test
+    void batch() {
+        HierarchyLevel[] level = new HierarchyLevel[1];
+        List<Person> members = group(level, 20);
+        List<Person> leavers = new ArrayList<>();
+
+        level[0].enableBatchRekey(100, Long.MAX_VALUE);
+
+        for (int i = 0; i < 5; ++i) {
+            Person leaver = members.remove(2 + 3 * i);
+            leaver.leaveGroup(level[0]);
+            leavers.add(leaver);
+
+            /* a repeated leave is ignored */
+            if (i == 0)
+                leaver.leaveGroup(level[0]);
+
+            Person member = new Person();
+            member.joinGroup(level[0]);
+            members.add(member);
+        }
+
+        level[0].flush();
+        level[0].disableBatchRekey();
+
+        BigInteger key = assertAgree(members);
+
+        for (Person leaver : leavers) {
+            assertFalse(key.equals(leaver.getGroupKey()), "Leaver still has the key");
+        }
+    }
+
+    @Test
+    void merge() {
+        HierarchyLevel[] first = new HierarchyLevel[1];
+        HierarchyLevel[] second = new HierarchyLevel[1];
+        List<Person> members = group(first, 13);
+        List<Person> others = group(second, 7);
+
+        assertAgree(members);
+        assertAgree(others);
+
+        second[0].merge(first[0]);
+        members.addAll(others);
+        assertAgree(members);
+
+        Person member = new Person();
+        member.joinGroup(second[0]);
+        members.add(member);
+        assertAgree(members);
+
+        members.remove(3).leaveGroup(second[0]);
+        assertEquals(second[0].getGroupKey(), assertAgree(members));
+    }
+}
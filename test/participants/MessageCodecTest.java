@@ -0,0 +1,134 @@
+package participants;
+
+import crypto.GroupParameters;
+import org.junit.jupiter.api.Test;
+import utils.BlindedTree;
+import utils.BranchUpdate;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MessageCodecTest {
+    private static final BigInteger P = new BigInteger("170141183460469231731687303715884105727");
+    private static final BigInteger G = BigInteger.valueOf(3);
+
+    private final Map<Long, Person> members = new HashMap<>();
+    private final MemberDirectory directory = id -> {
+        Person member = members.get(id);
+
+        if (member == null)
+            throw new NoSuchElementException("Unknown member " + id);
+
+        return member;
+    };
+
+    private Person member() {
+        Person member = new Person();
+        members.put(member.getId(), member);
+
+        return member;
+    }
+
+    /**
+     * Encodes the message after some padding, checks the frame accounting
+     * and decodes it back.
+     */
+    private Message roundTrip(Person recipient, Message message) {
+        int size = MessageCodec.frameSize(message);
+        ByteBuffer buffer = ByteBuffer.allocate(size + 3);
+
+        buffer.position(3);
+        MessageCodec.encode(recipient.getId(), message, buffer);
+        assertEquals(size + 3, buffer.position());
+
+        buffer.flip();
+        buffer.position(3);
+
+        assertEquals(size, MessageCodec.frameLength(buffer));
+        assertEquals(recipient.getId(), MessageCodec.recipient(buffer));
+
+        Message decoded = MessageCodec.decode(buffer, directory);
+
+        assertEquals(size + 3, buffer.position());
+        assertEquals(message.getType(), decoded.getType());
+        assertSame(message.getSender(), decoded.getSender());
+
+        return decoded;
+    }
+
+    @Test
+    void greetAndGoodbye() {
+        Person sender = member();
+        Person recipient = member();
+
+        assertNull(roundTrip(recipient, Message.greet(sender)).getBranch());
+        assertNull(roundTrip(recipient, Message.goodbye(sender)).getSnapshot());
+    }
+
+    @Test
+    void branchUpdate() {
+        BranchUpdate branch = new BranchUpdate();
+        branch.add(0, 0, BigInteger.ONE);
+        branch.add(3, 5, P.subtract(BigInteger.TWO));
+        branch.add(200, Integer.MAX_VALUE, G.pow(300));
+        branch.setEpoch(42);
+
+        Message decoded = roundTrip(member(), Message.branchUpdate(member(), branch));
+
+        assertEquals(branch, decoded.getBranch());
+        assertEquals(42, decoded.getBranch().getEpoch());
+    }
+
+    @Test
+    void treeSnapshot() {
+        Person a = member();
+        Person b = member();
+        Person c = member();
+
+        Client[] clients = {null, a, null, b, c};
+        BigInteger[] keys = {null, BigInteger.TEN, BigInteger.ZERO, null, P.subtract(BigInteger.ONE)};
+        BlindedTree tree = new BlindedTree(clients, keys);
+
+        for (GroupParameters parameters : new GroupParameters[]{GroupParameters.modp(P, G), GroupParameters.X25519}) {
+            TreeSnapshot snapshot = new TreeSnapshot(parameters, tree, 7);
+            TreeSnapshot decoded = roundTrip(member(), Message.treeSnapshot(a, snapshot)).getSnapshot();
+
+            assertEquals(parameters, decoded.getParameters());
+            assertEquals(7, decoded.getEpoch());
+            assertEquals(tree.size(), decoded.getTree().size());
+
+            for (int i = 0; i < tree.size(); ++i) {
+                assertSame(tree.getClient(i), decoded.getTree().getClient(i));
+                assertEquals(tree.getKey(i), decoded.getTree().getKey(i));
+            }
+        }
+    }
+
+    @Test
+    void malformedFrames() {
+        Person recipient = member();
+        Message message = Message.greet(member());
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.frameSize(message));
+
+        MessageCodec.encode(recipient.getId(), message, buffer);
+        buffer.flip();
+        buffer.put(MessageCodec.LENGTH_SIZE, (byte) 0x7F);
+
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(buffer, directory));
+
+        buffer.clear();
+        MessageCodec.encode(recipient.getId(), message, buffer);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(buffer, directory));
+    }
+}
@@ -0,0 +1,116 @@
+package participants;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Members spread over three endpoints on the loopback interface.
+ */
+class NioTransportTest {
+    private static final BigInteger P = new BigInteger("170141183460469231731687303715884105727");
+    private static final BigInteger G = BigInteger.valueOf(3);
+
+    private final Map<Long, Person> members = new ConcurrentHashMap<>();
+    private final NioTransport[] transports = new NioTransport[3];
+
+    @BeforeEach
+    void open() throws IOException {
+        MemberDirectory directory = id -> {
+            Person member = members.get(id);
+
+            if (member == null)
+                throw new NoSuchElementException("Unknown member " + id);
+
+            return member;
+        };
+
+        for (int i = 0; i < transports.length; ++i) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+            transports[i] = new NioTransport(address, directory, InMemoryTransport.withThreads(2, 16));
+        }
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        for (NioTransport transport : transports) {
+            transport.close();
+        }
+    }
+
+    private Person host(Person member, int endpoint) throws IOException {
+        members.put(member.getId(), member);
+        transports[endpoint].host(member);
+
+        for (int i = 0; i < transports.length; ++i) {
+            if (i != endpoint)
+                transports[i].route(member.getId(), transports[endpoint].getAddress());
+        }
+
+        member.setTransport(transports[endpoint]);
+
+        return member;
+    }
+
+    /**
+     * Waits until no endpoint has anything in flight, twice over, since a
+     * delivered message can make its recipient send more.
+     */
+    private void awaitIdle() throws InterruptedException {
+        for (int round = 0; round < 4; ++round) {
+            Thread.sleep(5);
+
+            for (NioTransport transport : transports) {
+                transport.awaitIdle();
+            }
+        }
+    }
+
+    @Test
+    void membersAgreeOverLoopback() {
+        assertTimeoutPreemptively(Duration.ofMinutes(1), () -> {
+            Person first = host(new Person(P, G), 0);
+            HierarchyLevel level = new HierarchyLevel(first);
+            List<Person> group = new ArrayList<>();
+            group.add(first);
+
+            for (int i = 1; i < 18; ++i) {
+                Person member = host(new Person(), i % transports.length);
+                member.joinGroup(level);
+                awaitIdle();
+                group.add(member);
+            }
+
+            GroupKeyTest.assertAgree(group);
+
+            Random random = new Random(5);
+
+            for (int i = 0; i < 6; ++i) {
+                group.remove(1 + random.nextInt(group.size() - 1)).leaveGroup(level);
+                awaitIdle();
+
+                GroupKeyTest.assertAgree(group);
+            }
+
+            for (NioTransport transport : transports) {
+                assertEquals(0, transport.getUndeliverable());
+                assertEquals(0, transport.getFailedFrames());
+            }
+        });
+    }
+}
@@ -0,0 +1,217 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+import participants.Client;
+import participants.HierarchyLevel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Checks joins and leaves of a DHTree against a plain linked tree that finds
+ * the insertion point breadth-first.
+ */
+class DHTreeTest {
+    private static final class Member implements Client {
+        @Override
+        public void joinGroup(HierarchyLevel group) {
+        }
+
+        @Override
+        public void leaveGroup(HierarchyLevel group) {
+        }
+    }
+
+    /**
+     * Reference tree, one object per node.
+     */
+    private static final class Node {
+        private Client client;
+        private Node parent;
+        private Node left;
+        private Node right;
+
+        private Node(Client client) {
+            this.client = client;
+        }
+
+        private Node(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private Node root;
+
+    /**
+     * Shallowest rightmost leaf, if hanging the new leaf under it keeps the
+     * height, otherwise the root.
+     */
+    private Node insertionNode() {
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        queue.add(root);
+        depths.add(0);
+
+        while (true) {
+            Node node = queue.poll();
+            int depth = depths.poll();
+
+            if (node.client != null)
+                return node != root && depth + 2 <= height(root) ? node : root;
+
+            queue.add(node.right);
+            depths.add(depth + 1);
+            queue.add(node.left);
+            depths.add(depth + 1);
+        }
+    }
+
+    private Client add(Client client) {
+        Node leaf = new Node(client);
+
+        if (root == null) {
+            root = leaf;
+            return null;
+        }
+
+        Node insertion = insertionNode();
+        Node parent = insertion.parent;
+        Node joined = new Node(insertion, leaf);
+
+        joined.parent = parent;
+        insertion.parent = joined;
+        leaf.parent = joined;
+
+        if (parent == null)
+            root = joined;
+        else if (parent.left == insertion)
+            parent.left = joined;
+        else
+            parent.right = joined;
+
+        return rightmostLeaf(insertion).client;
+    }
+
+    private Client sponsor(Client client) {
+        Node leaf = find(root, client);
+
+        return rightmostLeaf(sibling(leaf)).client;
+    }
+
+    private Client remove(Client client) {
+        Node leaf = find(root, client);
+        Node parent = leaf.parent;
+        Node sibling = sibling(leaf);
+        Node grandparent = parent.parent;
+
+        sibling.parent = grandparent;
+
+        if (grandparent == null)
+            root = sibling;
+        else if (grandparent.left == parent)
+            grandparent.left = sibling;
+        else
+            grandparent.right = sibling;
+
+        return rightmostLeaf(sibling).client;
+    }
+
+    private static Node sibling(Node node) {
+        return node.parent.left == node ? node.parent.right : node.parent.left;
+    }
+
+    private static Node rightmostLeaf(Node node) {
+        while (node.client == null) {
+            node = node.right;
+        }
+
+        return node;
+    }
+
+    private static Node find(Node node, Client client) {
+        if (node.client != null)
+            return node.client == client ? node : null;
+
+        Node found = find(node.left, client);
+
+        return found != null ? found : find(node.right, client);
+    }
+
+    private static int height(Node node) {
+        if (node.client != null)
+            return 1;
+
+        return Math.max(height(node.left), height(node.right)) + 1;
+    }
+
+    private static void preOrder(Node node, List<Client> nodes) {
+        nodes.add(node.client);
+
+        if (node.client == null) {
+            preOrder(node.left, nodes);
+            preOrder(node.right, nodes);
+        }
+    }
+
+    private void assertSameShape(DHTree tree) {
+        List<Client> expected = new ArrayList<>();
+        preOrder(root, expected);
+
+        BlindedTree blinded = tree.getBlindedTree();
+        List<Client> actual = new ArrayList<>();
+
+        for (int i = 0; i < blinded.size(); ++i) {
+            actual.add(blinded.getClient(i));
+        }
+
+        assertEquals(expected, actual);
+        assertEquals(height(root), tree.getHeight());
+    }
+
+    @Test
+    void joinsAndLeavesMatchReference() {
+        Random random = new Random(7);
+
+        for (int trial = 0; trial < 50; ++trial) {
+            Member owner = new Member();
+            DHTree tree = new DHTree(owner);
+            List<Client> members = new ArrayList<>();
+
+            root = null;
+            add(owner);
+            members.add(owner);
+
+            for (int step = 0; step < 300; ++step) {
+                if (random.nextInt(3) > 0 || members.size() < 3) {
+                    Member member = new Member();
+
+                    assertSame(add(member), tree.addClient(member));
+                    members.add(member);
+                } else {
+                    Client member = members.remove(1 + random.nextInt(members.size() - 1));
+
+                    assertSame(sponsor(member), tree.findSponsor(member));
+                    assertSame(remove(member), tree.removeClient(member));
+                }
+
+                assertSameShape(tree);
+            }
+        }
+    }
+
+    @Test
+    void onlyClientHasNoSponsor() {
+        Member owner = new Member();
+        DHTree tree = new DHTree(owner);
+
+        assertNull(tree.findSponsor(owner));
+        assertSame(owner, tree.addClient(new Member()));
+    }
+}